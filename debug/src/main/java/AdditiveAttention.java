@@ -0,0 +1 @@
+../../../../utils/attention/AdditiveAttention.java
\ No newline at end of file
@@ -0,0 +1 @@
+../../../../utils/BucketSampler.java
\ No newline at end of file
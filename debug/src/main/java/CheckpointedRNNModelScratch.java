@@ -0,0 +1 @@
+../../../../utils/timemachine/CheckpointedRNNModelScratch.java
\ No newline at end of file
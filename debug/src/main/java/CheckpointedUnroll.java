@@ -0,0 +1 @@
+../../../../utils/timemachine/CheckpointedUnroll.java
\ No newline at end of file
@@ -0,0 +1 @@
+../../../../utils/metrics/CsvMetricsExporter.java
\ No newline at end of file
@@ -0,0 +1 @@
+../../../../utils/DataParallel.java
\ No newline at end of file
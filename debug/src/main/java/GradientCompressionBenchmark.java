@@ -0,0 +1,124 @@
+/*
+ * Copyright 2021 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ * with the License. A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0/
+ *
+ * or in the "license" file accompanying this file. This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+import ai.djl.Device;
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.Parameter;
+import ai.djl.nn.recurrent.GRU;
+import ai.djl.training.dataset.ArrayDataset;
+import ai.djl.training.initializer.NormalInitializer;
+import ai.djl.translate.TranslateException;
+import ai.djl.util.Pair;
+
+import java.io.IOException;
+
+/**
+ * Compares the gradients exchanged by {@link DataParallel} with the dense all-reduce and with each
+ * {@link GradientCompressor}. Trains 2 replicas of the GRU of Time Machine, then of the seq2seq
+ * model of English-French translation, and prints for each of them the bytes of gradients exchanged
+ * and the final perplexity or loss. The no. of epochs is the first argument.
+ */
+public class GradientCompressionBenchmark {
+
+    private static final String[] COMPRESSORS = {"dense", "TopK(0.01)", "Int8", "Sign"};
+
+    public static void main(String[] args) throws IOException, TranslateException {
+        int numEpochs = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int numReplicas = 2;
+        try (NDManager manager = NDManager.newBaseManager()) {
+            Device device = manager.getDevice();
+
+            int batchSize = 32;
+            int numSteps = 35;
+            TimeMachineDataset timeMachine =
+                    new TimeMachineDataset.Builder()
+                            .setManager(manager)
+                            .setMaxTokens(10000)
+                            .setSampling(batchSize, false)
+                            .setSteps(numSteps)
+                            .build();
+            timeMachine.prepare();
+            Vocab vocab = timeMachine.getVocab();
+            for (String name : COMPRESSORS) {
+                System.out.println("== Time Machine, " + name);
+                Engine.getInstance().setRandomSeed(0);
+                TrainParallel.trainCh8(
+                        replicaManager -> {
+                            GRU gruLayer =
+                                    GRU.builder()
+                                            .setNumLayers(1)
+                                            .setStateSize(256)
+                                            .optReturnState(true)
+                                            .optBatchFirst(false)
+                                            .build();
+                            RNNModel<GRU> net = new RNNModel<>(gruLayer, vocab.length());
+                            net.setInitializer(new NormalInitializer(0.01f), Parameter.Type.WEIGHT);
+                            net.initialize(
+                                    replicaManager,
+                                    DataType.FLOAT32,
+                                    new Shape(batchSize / numReplicas, numSteps));
+                            return net;
+                        },
+                        numReplicas,
+                        timeMachine,
+                        vocab,
+                        1,
+                        numEpochs,
+                        device,
+                        false,
+                        manager,
+                        newCompressor(name));
+            }
+
+            Pair<ArrayDataset, Pair<Vocab, Vocab>> nmt = NMT.loadDataNMT(64, 10, 600, manager);
+            Vocab srcVocab = nmt.getValue().getKey();
+            Vocab tgtVocab = nmt.getValue().getValue();
+            for (String name : COMPRESSORS) {
+                System.out.println("== English-French, " + name);
+                Engine.getInstance().setRandomSeed(0);
+                JupyterSeq2SeqLearning.trainSeq2SeqParallel(
+                        () ->
+                                new EncoderDecoder(
+                                        new JupyterSeq2SeqLearning.Seq2SeqEncoder(
+                                                srcVocab.length(), 32, 32, 2, 0.1f),
+                                        new JupyterSeq2SeqLearning.Seq2SeqDecoder(
+                                                tgtVocab.length(), 32, 32, 2, 0.1f)),
+                        numReplicas,
+                        nmt.getKey(),
+                        0.005f,
+                        numEpochs,
+                        tgtVocab,
+                        device,
+                        manager,
+                        newCompressor(name));
+            }
+        }
+    }
+
+    /* A new compressor for each run, null for the dense all-reduce */
+    private static GradientCompressor newCompressor(String name) {
+        switch (name) {
+            case "TopK(0.01)":
+                return new GradientCompressor.TopK(0.01f);
+            case "Int8":
+                return new GradientCompressor.Int8();
+            case "Sign":
+                return new GradientCompressor.Sign();
+            default:
+                return null;
+        }
+    }
+}
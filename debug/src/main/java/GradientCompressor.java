@@ -0,0 +1 @@
+../../../../utils/GradientCompressor.java
\ No newline at end of file
@@ -0,0 +1 @@
+../../../../utils/timemachine/HierarchicalSoftmax.java
\ No newline at end of file
@@ -0,0 +1 @@
+../../../../utils/timemachine/HuffmanTree.java
\ No newline at end of file
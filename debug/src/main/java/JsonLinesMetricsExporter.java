@@ -0,0 +1 @@
+../../../../utils/metrics/JsonLinesMetricsExporter.java
\ No newline at end of file
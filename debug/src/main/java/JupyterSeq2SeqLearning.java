@@ -24,6 +24,7 @@ import ai.djl.ndarray.NDManager;
 import ai.djl.ndarray.index.NDIndex;
 import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.Parameter;
 import ai.djl.nn.core.Linear;
 import ai.djl.nn.recurrent.GRU;
 import ai.djl.training.DefaultTrainingConfig;
@@ -38,10 +39,13 @@ import ai.djl.training.loss.SoftmaxCrossEntropyLoss;
 import ai.djl.training.optimizer.Optimizer;
 import ai.djl.training.tracker.Tracker;
 import ai.djl.translate.TranslateException;
+import ai.djl.util.Pair;
 import ai.djl.util.PairList;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -97,6 +101,35 @@ public class JupyterSeq2SeqLearning {
             Vocab tgtVocab,
             Device device)
             throws IOException, TranslateException {
+        trainSeq2Seq(net, dataset, lr, numEpochs, tgtVocab, device, null);
+    }
+
+    public static void trainSeq2Seq(
+            EncoderDecoder net,
+            ArrayDataset dataset,
+            float lr,
+            int numEpochs,
+            Vocab tgtVocab,
+            Device device,
+            MetricsRecorder recorder)
+            throws IOException, TranslateException {
+        trainSeq2Seq(net, dataset, lr, numEpochs, tgtVocab, device, recorder, null);
+    }
+
+    /**
+     * Trains in mixed precision if `precision` is not null, see {@link MixedPrecision}. Falls back
+     * to float32 when the engine cannot compute in its data type on `device`.
+     */
+    public static void trainSeq2Seq(
+            EncoderDecoder net,
+            ArrayDataset dataset,
+            float lr,
+            int numEpochs,
+            Vocab tgtVocab,
+            Device device,
+            MetricsRecorder recorder,
+            MixedPrecision precision)
+            throws IOException, TranslateException {
         Loss loss = new MaskedSoftmaxCELoss();
         Tracker lrt = Tracker.fixed(lr);
         Optimizer adam = Optimizer.adam().optLearningRateTracker(lrt).build();
@@ -109,6 +142,15 @@ public class JupyterSeq2SeqLearning {
         Model model = Model.newInstance("seq2seq");
         model.setBlock(net);
         Trainer trainer = model.newTrainer(config);
+        if (precision != null && !precision.isSupported(model.getNDManager())) {
+            System.out.format(
+                    "%s is not supported on %s, training in float32%n",
+                    precision.getDataType(), device);
+            precision = null;
+        }
+
+        // The parameters are initialized by the first forward pass
+        NDList params = new NDList();
 
         Animator animator = new Animator();
         StopWatch watch;
@@ -116,11 +158,16 @@ public class JupyterSeq2SeqLearning {
         double lossValue = 0, speed = 0;
         for (int epoch = 1; epoch <= numEpochs; epoch++) {
             watch = new StopWatch();
-            metric = new Accumulator(2); // Sum of training loss, no. of tokens
+            metric = new Accumulator(2); // Sum of training loss over tokens, no. of tokens
+            MemoryAuditor.beginScope("trainSeq2Seq", model.getNDManager());
             try (NDManager childManager = model.getNDManager().newSubManager(device)) {
+                // The parameters initialized by the first forward pass must outlive the epoch
+                ParameterStore ps = new ParameterStore(model.getNDManager(), false);
                 // Iterate over dataset
-                ParameterStore ps = new ParameterStore(childManager, false);
+                TrainingProfiler.start(childManager);
+                long stepStart = System.nanoTime();
                 for (Batch batch : dataset.getData(childManager)) {
+                    TrainingProfiler.stop(TrainingProfiler.DATA, childManager, null);
                     NDArray X = batch.getData().get(0);
                     NDArray lenX = batch.getData().get(1);
                     NDArray Y = batch.getLabels().get(0);
@@ -134,19 +181,66 @@ public class JupyterSeq2SeqLearning {
                             NDArrays.concat(
                                     new NDList(bos, Y.get(new NDIndex(":, :-1"))),
                                     1); // Teacher forcing
+                    TrainingProfiler.stop(TrainingProfiler.TO_DEVICE, childManager, decInput);
+                    if (precision != null) {
+                        ps = precision.newParameterStore(model.getNDManager());
+                    }
                     try (GradientCollector gc = Engine.getInstance().newGradientCollector()) {
                         NDArray yHat = net.forward(ps, new NDList(X, decInput, lenX), true).get(0);
-                        NDArray l = loss.evaluate(new NDList(Y, lenY), new NDList(yHat));
-                        gc.backward(l);
-                        metric.add(new float[] {l.sum().getFloat(), lenY.sum().getLong()});
+                        TrainingProfiler.stop(TrainingProfiler.FORWARD, childManager, yHat);
+                        if (params.isEmpty()) {
+                            for (Pair<String, Parameter> pair : net.getParameters()) {
+                                params.add(pair.getValue().getArray());
+                            }
+                        }
+                        // The loss is computed in float32 whatever the data type of the outputs
+                        yHat = yHat.toType(DataType.FLOAT32, false);
+                        // `MaskedSoftmaxCELoss` averages over the padded length of the batch,
+                        // which varies with bucketed or token budget sampling. Normalize by the
+                        // number of valid tokens instead, so that every token has the same weight
+                        // whatever the size and length of its batch
+                        NDArray l =
+                                loss.evaluate(new NDList(Y, lenY), new NDList(yHat))
+                                        .mul(Y.getShape().get(1))
+                                        .sum();
+                        long numTokens = lenY.sum().getLong();
+                        TrainingProfiler.stop(TrainingProfiler.LOSS, childManager, l);
+                        NDArray objective = l.div(numTokens);
+                        gc.backward(precision == null ? objective : precision.scale(objective));
+                        TrainingProfiler.stopGradients(
+                                TrainingProfiler.BACKWARD, childManager, params);
+                        metric.add(new float[] {l.getFloat(), numTokens});
+                        TrainingProfiler.stop(TrainingProfiler.METRIC, childManager, null);
+                    }
+                    // Skip the step if the gradients overflowed in half precision
+                    if (precision == null || precision.unscale(params, childManager)) {
+                        TrainingChapter9.gradClipping(net, 1, childManager);
+                        TrainingProfiler.stopGradients(
+                                TrainingProfiler.GRAD_CLIPPING, childManager, params);
+                        // Update parameters
+                        trainer.step();
+                        TrainingProfiler.stopInPlace(
+                                TrainingProfiler.UPDATER, childManager, params);
+                    }
+                    if (recorder != null) {
+                        long now = System.nanoTime();
+                        recorder.recordStep(now - stepStart);
+                        stepStart = now;
                     }
-                    TrainingChapter9.gradClipping(net, 1, childManager);
-                    // Update parameters
-                    trainer.step();
                 }
             }
+            TrainingProfiler.report(epoch);
+            MemoryAuditor.endScope("trainSeq2Seq");
+            MemoryAuditor.epoch(epoch, model.getNDManager());
             lossValue = metric.get(0) / metric.get(1);
             speed = metric.get(1) / watch.stop();
+            if (recorder != null) {
+                recorder.record("loss", lossValue);
+                recorder.record("perplexity", Math.exp(lossValue));
+                recorder.record("tokens_per_sec", speed);
+                recorder.recordMemory(model.getNDManager());
+                recorder.endEpoch();
+            }
             if ((epoch + 1) % 10 == 0) {
                 animator.add(epoch + 1, (float) lossValue, "loss");
                 animator.show();
@@ -154,6 +248,166 @@ public class JupyterSeq2SeqLearning {
         }
         System.out.format(
                 "loss: %.3f, %.1f tokens/sec on %s%n", lossValue, speed, device.toString());
+        if (precision != null) {
+            System.out.format(
+                    "%s, loss scale: %.0f, %d steps skipped%n",
+                    precision.getDataType(), precision.getLossScale(), precision.getNumSkipped());
+        }
+    }
+
+    /**
+     * Trains `numReplicas` replicas of the model in parallel, see {@link DataParallel}. Each
+     * replica gets a share of the sentences of every batch, and the gradients are exchanged
+     * compressed by `compressor`, or dense if it is null.
+     *
+     * @param newNet creates a replica of the model, not initialized yet
+     */
+    public static void trainSeq2SeqParallel(
+            Supplier<EncoderDecoder> newNet,
+            int numReplicas,
+            ArrayDataset dataset,
+            float lr,
+            int numEpochs,
+            Vocab tgtVocab,
+            Device device,
+            NDManager manager,
+            GradientCompressor compressor)
+            throws IOException, TranslateException {
+        Loss loss = new MaskedSoftmaxCELoss();
+        List<NDManager> managers = new ArrayList<>();
+        try {
+            List<EncoderDecoder> nets = new ArrayList<>();
+            List<Optimizer> optimizers = new ArrayList<>();
+            for (int i = 0; i < numReplicas; i++) {
+                managers.add(manager.newSubManager(device));
+                EncoderDecoder net = newNet.get();
+                net.setInitializer(new XavierInitializer(), Parameter.Type.WEIGHT);
+                nets.add(net);
+                optimizers.add(Optimizer.adam().optLearningRateTracker(Tracker.fixed(lr)).build());
+            }
+            // The parameters are initialized by a first forward pass in training mode,
+            // `DataParallel` then copies the ones of the first replica to the others
+            try (NDManager initManager = manager.newSubManager(device)) {
+                Batch batch = dataset.getData(initManager).iterator().next();
+                NDList input =
+                        new NDList(
+                                batch.getData().get(0),
+                                teacherForcing(batch.getLabels().get(0), tgtVocab, initManager),
+                                batch.getData().get(1));
+                for (int i = 0; i < numReplicas; i++) {
+                    // The rnn only runs in training mode within a gradient collector
+                    GradientCollector collector = Engine.getInstance().newGradientCollector();
+                    try {
+                        nets.get(i)
+                                .forward(new ParameterStore(managers.get(i), false), input, true);
+                    } finally {
+                        collector.close();
+                    }
+                }
+            }
+
+            // Sentences and valid tokens of the batch being trained
+            long[] batchSize = new long[2];
+            DataParallel.Step step =
+                    (replica, data, labels, subManager) -> {
+                        NDArray X = data.get(0);
+                        NDArray lenX = data.get(1);
+                        NDArray Y = labels.get(0);
+                        NDArray lenY = labels.get(1);
+                        NDArray decInput = teacherForcing(Y, tgtVocab, subManager);
+                        EncoderDecoder net = (EncoderDecoder) replica.getModel();
+                        NDArray yHat =
+                                net.forward(
+                                                new ParameterStore(replica.getManager(), false),
+                                                new NDList(X, decInput, lenX),
+                                                true)
+                                        .get(0);
+                        NDArray l =
+                                loss.evaluate(new NDList(Y, lenY), new NDList(yHat))
+                                        .mul(Y.getShape().get(1))
+                                        .sum();
+                        // `DataParallel` weights the loss of the shard by its share of the
+                        // sentences, the shards then sum to the loss per valid token of the batch
+                        // as in `trainSeq2Seq`
+                        long shardSize = X.getShape().get(0);
+                        return new NDList(
+                                l.mul((double) batchSize[0] / (shardSize * batchSize[1])));
+                    };
+
+            Animator animator = new Animator();
+            double lossValue = 0, speed = 0;
+            long bytesMoved;
+            try (DataParallel parallel =
+                    new DataParallel(
+                            nets,
+                            net -> {
+                                NDList params = new NDList();
+                                for (Pair<String, Parameter> pair :
+                                        ((EncoderDecoder) net).getParameters()) {
+                                    params.add(pair.getValue().getArray());
+                                }
+                                return params;
+                            },
+                            compressor)) {
+                for (int epoch = 1; epoch <= numEpochs; epoch++) {
+                    StopWatch watch = new StopWatch();
+                    Accumulator metric = new Accumulator(2); // Sum of training loss, no. of tokens
+                    try (NDManager childManager = manager.newSubManager(device)) {
+                        for (Batch batch : dataset.getData(childManager)) {
+                            batchSize[0] = batch.getData().get(0).getShape().get(0);
+                            batchSize[1] = batch.getLabels().get(1).sum().getLong();
+                            float l =
+                                    parallel.step(
+                                            batch.getData(),
+                                            batch.getLabels(),
+                                            step,
+                                            (replica, subManager) -> {
+                                                EncoderDecoder net =
+                                                        (EncoderDecoder) replica.getModel();
+                                                TrainingChapter9.gradClipping(net, 1, subManager);
+                                                Optimizer optimizer =
+                                                        optimizers.get(replica.getIndex());
+                                                for (Pair<String, Parameter> pair :
+                                                        net.getParameters()) {
+                                                    NDArray param = pair.getValue().getArray();
+                                                    NDArray gradient = param.getGradient();
+                                                    gradient.attach(subManager);
+                                                    optimizer.update(
+                                                            pair.getValue().getId(),
+                                                            param,
+                                                            gradient);
+                                                }
+                                            });
+                            metric.add(new float[] {l * batchSize[1], batchSize[1]});
+                            batch.close();
+                        }
+                    }
+                    lossValue = metric.get(0) / metric.get(1);
+                    speed = metric.get(1) / watch.stop();
+                    if ((epoch + 1) % 10 == 0) {
+                        animator.add(epoch + 1, (float) lossValue, "loss");
+                        animator.show();
+                    }
+                }
+                bytesMoved = parallel.getBytesMoved();
+            }
+            System.out.format(
+                    "loss: %.3f, %.1f tokens/sec on %d replicas on %s%n",
+                    lossValue, speed, numReplicas, device.toString());
+            System.out.format("%.1f MB of gradients exchanged%n", bytesMoved / 1e6);
+        } finally {
+            for (NDManager replicaManager : managers) {
+                replicaManager.close();
+            }
+        }
+    }
+
+    /* The input of the decoder: `<bos>` followed by the labels but the last one */
+    private static NDArray teacherForcing(NDArray Y, Vocab tgtVocab, NDManager manager) {
+        NDArray bos =
+                manager.full(new Shape(Y.getShape().get(0)), tgtVocab.getIdx("<bos>"))
+                        .reshape(-1, 1);
+        return NDArrays.concat(new NDList(bos, Y.get(new NDIndex(":, :-1"))), 1);
     }
 
     public static class Seq2SeqEncoder extends Encoder {
@@ -212,8 +466,15 @@ public class JupyterSeq2SeqLearning {
             X = embedding.forward(ps, new NDList(X), training, params).head();
             // In RNN models, the first axis corresponds to time steps
             X = X.swapAxes(0, 1);
+            NDList input = new NDList(X);
+            if (X.getDataType() != DataType.FLOAT32) {
+                // The parameters are in half precision, see `MixedPrecision`, while `rnn` would
+                // begin with a float32 state
+                Shape[] shapes = rnn.getOutputShapes(new Shape[] {X.getShape()});
+                input.add(X.getManager().zeros(shapes[1], X.getDataType()));
+            }
 
-            return rnn.forward(ps, new NDList(X), training);
+            return rnn.forward(ps, input, training);
         }
     }
 
@@ -279,6 +540,12 @@ public class JupyterSeq2SeqLearning {
             return new NDList(encOutputs.get(1));
         }
 
+        @Override
+        public NDList reorderState(NDList state, NDArray indices) {
+            // The hidden state has the shape (`numLayers`, `batchSize`, `numHiddens`)
+            return new NDList(state.head().get(new NDIndex(":, {}", indices)));
+        }
+
         @Override
         protected NDList forwardInternal(
                 ParameterStore parameterStore,
@@ -319,11 +586,15 @@ public class JupyterSeq2SeqLearning {
         @Override
         public NDArray evaluate(NDList labels, NDList predictions) {
             NDArray weights = labels.head().onesLike().expandDims(-1).sequenceMask(labels.get(1));
-            // Remove the states from the labels NDList because otherwise, it will throw an error as
-            // SoftmaxCrossEntropyLoss
-            // expects only one NDArray for label and one NDArray for prediction
-            labels.remove(1);
-            return super.evaluate(labels, predictions).mul(weights).mean(new int[] {1});
+            // `SoftmaxCrossEntropyLoss.evaluate` averages over all the positions, padding
+            // included, so the loss of each token is computed here before the mask is applied
+            NDArray loss =
+                    predictions
+                            .head()
+                            .logSoftmax(-1)
+                            .get(new NDIndex().addAllDim(2).addPickDim(labels.head()))
+                            .neg();
+            return loss.mul(weights).mean(new int[] {1});
         }
     }
 }
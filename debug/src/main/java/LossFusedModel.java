@@ -0,0 +1 @@
+../../../../utils/timemachine/LossFusedModel.java
\ No newline at end of file
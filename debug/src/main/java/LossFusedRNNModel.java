@@ -0,0 +1 @@
+../../../../utils/timemachine/LossFusedRNNModel.java
\ No newline at end of file
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2021 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance
+ * with the License. A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0/
+ *
+ * or in the "license" file accompanying this file. This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+
+import java.util.function.BiFunction;
+
+/**
+ * Measures the arrays allocated and the time of a call to {@code Chap10Utils.maskedSoftmax},
+ * against the repeat, reshape and {@code sequenceMask} it replaced and against its path for every
+ * engine, {@code maskedSoftmaxGeneric}. The scores have the shape (`batchSize`, no. of queries, no.
+ * of keys), given as the arguments, and the lengths have one value for each batch or for each
+ * query. A reshaped array is counted at its size, though MXNet shares the memory of the array it
+ * comes from.
+ */
+public class MaskedSoftmaxBenchmark {
+
+    private static final int WARMUP = 20;
+    private static final int ITERATIONS = 200;
+
+    public static void main(String[] args) {
+        long batchSize = args.length > 0 ? Long.parseLong(args[0]) : 128;
+        long numQueries = args.length > 1 ? Long.parseLong(args[1]) : 50;
+        long numKeys = args.length > 2 ? Long.parseLong(args[2]) : 50;
+        try (NDManager manager = NDManager.newBaseManager()) {
+            NDArray X = manager.randomNormal(new Shape(batchSize, numQueries, numKeys));
+            NDArray[] allLens = {
+                manager.randomInteger(1, numKeys + 1, new Shape(batchSize), DataType.INT32)
+                        .toType(DataType.FLOAT32, false),
+                manager.randomInteger(
+                                1, numKeys + 1, new Shape(batchSize, numQueries), DataType.INT32)
+                        .toType(DataType.FLOAT32, false)
+            };
+            System.out.format(
+                    "Scores of shape %s on %s%n",
+                    X.getShape(), manager.getEngine().getEngineName());
+            for (NDArray validLens : allLens) {
+                System.out.format("Lengths of shape %s%n", validLens.getShape());
+                measure("repeat and sequenceMask", MaskedSoftmaxBenchmark::repeated, X, validLens);
+                measure("maskedSoftmaxGeneric", Chap10Utils::maskedSoftmaxGeneric, X, validLens);
+                measure("maskedSoftmax", Chap10Utils::maskedSoftmax, X, validLens);
+            }
+        }
+    }
+
+    /* Prints the no. of arrays and bytes allocated by a call, and its mean time */
+    private static void measure(
+            String name,
+            BiFunction<NDArray, NDArray, NDArray> softmax,
+            NDArray X,
+            NDArray validLens) {
+        int numArrays = 0;
+        long numBytes = 0;
+        long time = 0;
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            try (NDManager sub = X.getManager().newSubManager()) {
+                X.tempAttach(sub);
+                validLens.tempAttach(sub);
+                long start = System.nanoTime();
+                // Waits for the result, the engine may compute it asynchronously
+                softmax.apply(X, validLens).toFloatArray();
+                if (i >= WARMUP) {
+                    time += System.nanoTime() - start;
+                }
+                if (i == 0) {
+                    for (NDArray array : sub.getManagedArrays()) {
+                        if (array != X && array != validLens) {
+                            numArrays++;
+                            numBytes += array.size() * array.getDataType().getNumOfBytes();
+                        }
+                    }
+                }
+            }
+        }
+        System.out.format(
+                "  %-24s %2d arrays, %8.1f KB, %8.1f us%n",
+                name, numArrays, numBytes / 1024.0, time / 1e3 / ITERATIONS);
+    }
+
+    /* The masked softmax before it was fused, as in the notebooks of chapter 10 */
+    private static NDArray repeated(NDArray X, NDArray validLens) {
+        Shape shape = X.getShape();
+        if (validLens.getShape().dimension() == 1) {
+            validLens = validLens.repeat(shape.get(1));
+        } else {
+            validLens = validLens.reshape(-1);
+        }
+        X =
+                X.reshape(new Shape(-1, shape.get(shape.dimension() - 1)))
+                        .sequenceMask(validLens, (float) -1E6);
+        return X.softmax(-1).reshape(shape);
+    }
+}
@@ -0,0 +1 @@
+../../../../utils/MemoryAuditor.java
\ No newline at end of file
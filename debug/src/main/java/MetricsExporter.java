@@ -0,0 +1 @@
+../../../../utils/metrics/MetricsExporter.java
\ No newline at end of file
@@ -0,0 +1 @@
+../../../../utils/metrics/MetricsRecorder.java
\ No newline at end of file
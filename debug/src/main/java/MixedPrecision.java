@@ -0,0 +1 @@
+../../../../utils/MixedPrecision.java
\ No newline at end of file
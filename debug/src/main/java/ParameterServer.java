@@ -0,0 +1 @@
+../../../../utils/ParameterServer.java
\ No newline at end of file
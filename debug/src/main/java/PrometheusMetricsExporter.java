@@ -0,0 +1 @@
+../../../../utils/metrics/PrometheusMetricsExporter.java
\ No newline at end of file
@@ -0,0 +1 @@
+../../../../utils/RecordingPause.java
\ No newline at end of file
@@ -0,0 +1 @@
+../../../../utils/StreamingAnimator.java
\ No newline at end of file
@@ -0,0 +1 @@
+../../../../utils/timemachine/TrainParallel.java
\ No newline at end of file
@@ -0,0 +1 @@
+../../../../utils/TrainingProfiler.java
\ No newline at end of file
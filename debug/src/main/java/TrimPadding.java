@@ -0,0 +1 @@
+../../../../utils/TrimPadding.java
\ No newline at end of file
@@ -0,0 +1,66 @@
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.Parameter;
+import ai.djl.training.ParameterStore;
+import ai.djl.util.PairList;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/** Checks that the chunked path of {@link AdditiveAttention} agrees with the unchunked one. */
+public class AdditiveAttentionTest {
+
+    private static final int BATCH_SIZE = 3;
+    private static final int NUM_QUERIES = 4;
+    private static final int NUM_KEYS = 7;
+
+    @Test
+    public void testChunkedPathAgrees() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            NDArray queries = manager.randomNormal(new Shape(BATCH_SIZE, NUM_QUERIES, 5));
+            NDArray keys = manager.randomNormal(new Shape(BATCH_SIZE, NUM_KEYS, 6));
+            NDArray values = manager.randomNormal(new Shape(BATCH_SIZE, NUM_KEYS, 2));
+            NDArray[] allLens = {
+                null,
+                // Blocks of 3, 3 and 1 keys
+                manager.create(new float[] {4, 7, 1}),
+                // The keys past the longest length, 5, are skipped
+                manager.create(new float[] {2, 5, 3}),
+                // A batch without any valid key
+                manager.create(new float[] {4, 0, 6}),
+                manager.create(
+                        new float[] {1, 4, 0, 2, 3, 5, 1, 2, 6, 4, 0, 1},
+                        new Shape(BATCH_SIZE, NUM_QUERIES))
+            };
+            for (NDArray validLens : allLens) {
+                NDList inputs = new NDList(queries, keys, values, validLens);
+                Shape[] shapes = {
+                    queries.getShape(),
+                    keys.getShape(),
+                    values.getShape(),
+                    validLens == null ? new Shape(BATCH_SIZE) : validLens.getShape()
+                };
+                AdditiveAttention expected = new AdditiveAttention(8, 0);
+                expected.initialize(manager, DataType.FLOAT32, shapes);
+                AdditiveAttention chunked = new AdditiveAttention(8, 0, 3);
+                chunked.initialize(manager, DataType.FLOAT32, shapes);
+                PairList<String, Parameter> from = expected.getParameters();
+                PairList<String, Parameter> to = chunked.getParameters();
+                for (int i = 0; i < from.size(); i++) {
+                    to.valueAt(i).getArray().set(from.valueAt(i).getArray().toFloatArray());
+                }
+
+                ParameterStore ps = new ParameterStore(manager, false);
+                NDArray output = expected.forward(ps, inputs, false).head();
+                NDArray chunkedOutput = chunked.forward(ps, inputs, false).head();
+                Assertions.assertTrue(output.allClose(chunkedOutput, 1e-4, 1e-5, false));
+                Assertions.assertTrue(
+                        expected.attentionWeights.allClose(
+                                chunked.attentionWeights, 1e-4, 1e-5, false));
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+import ai.djl.Device;
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.Parameter;
+import ai.djl.nn.recurrent.GRU;
+import ai.djl.training.GradientCollector;
+import ai.djl.training.ParameterStore;
+import ai.djl.training.initializer.NormalInitializer;
+import ai.djl.training.loss.Loss;
+import ai.djl.training.loss.SoftmaxCrossEntropyLoss;
+import ai.djl.util.Pair;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/** Checks that checkpointed unrolling gives the gradients of the full unroll. */
+public class CheckpointedUnrollTest {
+
+    private static final int VOCAB_SIZE = 12;
+    private static final int NUM_HIDDENS = 16;
+    private static final int BATCH_SIZE = 3;
+    private static final int NUM_STEPS = 10;
+
+    @Test
+    public void testScratchGradients() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            manager.getEngine().setRandomSeed(1234);
+            NDArray X =
+                    manager.randomInteger(
+                            0, VOCAB_SIZE, new Shape(BATCH_SIZE, NUM_STEPS), DataType.INT32);
+            NDArray y =
+                    manager.randomInteger(
+                            0, VOCAB_SIZE, new Shape(BATCH_SIZE * NUM_STEPS), DataType.INT32);
+            NDArray h0 = manager.randomNormal(new Shape(BATCH_SIZE, NUM_HIDDENS));
+            Loss loss = new SoftmaxCrossEntropyLoss();
+
+            RNNModelScratch full = newScratch(manager, 0);
+            NDList fullGrads;
+            float fullLoss;
+            try (GradientCollector gc = Engine.getInstance().newGradientCollector()) {
+                NDArray yHat = full.forward(X, new NDList(h0)).getKey();
+                NDArray l = loss.evaluate(new NDList(y), new NDList(yHat)).mean();
+                gc.backward(l);
+                fullLoss = l.getFloat();
+                fullGrads = gradients(full.params);
+            }
+
+            // Segments of 3 steps, the last one is shorter
+            CheckpointedRNNModelScratch checkpointed =
+                    (CheckpointedRNNModelScratch) newScratch(manager, 3);
+            for (int i = 0; i < full.params.size(); i++) {
+                checkpointed.params.get(i).set(full.params.get(i).toFloatArray());
+            }
+            NDList checkpointedGrads;
+            float checkpointedLoss;
+            try (GradientCollector gc = Engine.getInstance().newGradientCollector()) {
+                NDList result = checkpointed.forwardLoss(X, new NDList(h0), y, loss);
+                gc.backward(result.get(0));
+                checkpointedLoss = result.get(1).getFloat();
+            }
+            checkpointedGrads = gradients(checkpointed.params);
+
+            Assertions.assertEquals(fullLoss, checkpointedLoss, 1e-5f);
+            assertClose(fullGrads, checkpointedGrads);
+        }
+    }
+
+    @Test
+    public void testRNNModelGradients() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            manager.getEngine().setRandomSeed(1234);
+            NDArray X =
+                    manager.randomInteger(
+                            0, VOCAB_SIZE, new Shape(BATCH_SIZE, NUM_STEPS), DataType.INT32);
+            NDArray y =
+                    manager.randomInteger(
+                            0, VOCAB_SIZE, new Shape(BATCH_SIZE * NUM_STEPS), DataType.INT32);
+
+            NDList expected = null;
+            // Full unroll with the full logits, then checkpointed with the chunked loss
+            for (int checkpointSteps : new int[] {0, 4}) {
+                manager.getEngine().setRandomSeed(1234);
+                GRU gru =
+                        GRU.builder()
+                                .setNumLayers(1)
+                                .setStateSize(NUM_HIDDENS)
+                                .optReturnState(true)
+                                .optBatchFirst(false)
+                                .build();
+                LossFusedRNNModel<GRU> model = new LossFusedRNNModel<>(gru, VOCAB_SIZE);
+                model.setCheckpointSteps(checkpointSteps);
+                model.setLossChunkSize(checkpointSteps > 0 ? 5 : 0);
+                model.setInitializer(new NormalInitializer(0.1f), Parameter.Type.WEIGHT);
+                model.initialize(manager, DataType.FLOAT32, X.getShape());
+                ParameterStore ps = new ParameterStore(manager, false);
+                try (GradientCollector gc = Engine.getInstance().newGradientCollector()) {
+                    NDList result = model.forwardLoss(ps, new NDList(X), y, true);
+                    gc.backward(result.get(0));
+                }
+                NDList params = new NDList();
+                for (Pair<String, Parameter> pair : model.getParameters()) {
+                    params.add(pair.getValue().getArray());
+                }
+                NDList grads = gradients(params);
+                if (expected == null) {
+                    expected = grads;
+                } else {
+                    assertClose(expected, grads);
+                }
+            }
+        }
+    }
+
+    private static RNNModelScratch newScratch(NDManager manager, int checkpointSteps) {
+        Functions.TriFunction<Integer, Integer, Device, NDList> getParams =
+                (vocabSize, numHiddens, device) -> {
+                    NDList params =
+                            new NDList(
+                                    manager.randomNormal(
+                                            0,
+                                            0.1f,
+                                            new Shape(vocabSize, numHiddens),
+                                            DataType.FLOAT32,
+                                            device),
+                                    manager.randomNormal(
+                                            0,
+                                            0.1f,
+                                            new Shape(numHiddens, numHiddens),
+                                            DataType.FLOAT32,
+                                            device),
+                                    manager.zeros(new Shape(numHiddens), DataType.FLOAT32, device),
+                                    manager.randomNormal(
+                                            0,
+                                            0.1f,
+                                            new Shape(numHiddens, vocabSize),
+                                            DataType.FLOAT32,
+                                            device),
+                                    manager.zeros(new Shape(vocabSize), DataType.FLOAT32, device));
+                    for (NDArray param : params) {
+                        param.setRequiresGradient(true);
+                    }
+                    return params;
+                };
+        Functions.TriFunction<Integer, Integer, Device, NDList> initState =
+                (batchSize, numHiddens, device) ->
+                        new NDList(manager.zeros(new Shape(batchSize, numHiddens)));
+        if (checkpointSteps == 0) {
+            return new RNNModelScratch(
+                    VOCAB_SIZE,
+                    NUM_HIDDENS,
+                    manager.getDevice(),
+                    getParams,
+                    initState,
+                    CheckpointedUnrollTest::rnn);
+        }
+        return new CheckpointedRNNModelScratch(
+                VOCAB_SIZE,
+                NUM_HIDDENS,
+                manager.getDevice(),
+                getParams,
+                initState,
+                CheckpointedUnrollTest::rnn,
+                false,
+                checkpointSteps);
+    }
+
+    private static Pair<NDArray, NDList> rnn(NDArray X, NDList state, NDList params) {
+        NDArray H = state.get(0);
+        NDList outputs = new NDList();
+        for (int t = 0; t < X.getShape().get(0); t++) {
+            H = X.get(t).dot(params.get(0)).add(H.dot(params.get(1))).add(params.get(2)).tanh();
+            outputs.add(H.dot(params.get(3)).add(params.get(4)));
+        }
+        return new Pair<>(NDArrays.concat(outputs), new NDList(H));
+    }
+
+    private static NDList gradients(NDList params) {
+        NDList grads = new NDList();
+        for (NDArray param : params) {
+            grads.add(param.getGradient().duplicate());
+        }
+        return grads;
+    }
+
+    private static void assertClose(NDList expected, NDList actual) {
+        Assertions.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assertions.assertTrue(
+                    expected.get(i).allClose(actual.get(i), 1e-4, 1e-5, false),
+                    "gradient " + i + " differs");
+        }
+    }
+}
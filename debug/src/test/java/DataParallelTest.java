@@ -0,0 +1,86 @@
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Checks that {@link DataParallel} reports the failure of a replica instead of hanging. */
+public class DataParallelTest {
+
+    private static final int NUM_REPLICAS = 3;
+
+    @Test
+    public void testFailingStep() {
+        checkFailingStep(null);
+    }
+
+    @Test
+    public void testFailingCompressedStep() {
+        checkFailingStep(new GradientCompressor.Int8());
+    }
+
+    private static void checkFailingStep(GradientCompressor compressor) {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            List<NDList> models = new ArrayList<>();
+            for (int i = 0; i < NUM_REPLICAS; i++) {
+                NDManager replicaManager = manager.newSubManager();
+                NDArray weight = replicaManager.ones(new Shape(4));
+                weight.setRequiresGradient(true);
+                models.add(new NDList(weight));
+            }
+            NDList data = new NDList(manager.ones(new Shape(6, 4)));
+            NDList labels = new NDList(manager.zeros(new Shape(6)));
+            RuntimeException failure = new IllegalArgumentException("replica 1 failed");
+            int[] failing = {1};
+
+            try (DataParallel parallel =
+                    new DataParallel(models, model -> (NDList) model, compressor)) {
+                DataParallel.Step step =
+                        (replica, shardData, shardLabels, subManager) -> {
+                            if (replica.getIndex() == failing[0]) {
+                                throw failure;
+                            }
+                            if (replica.getIndex() == 0) {
+                                // Arrives after the failure, when nobody waits for it anymore
+                                sleep(200);
+                            }
+                            NDArray weight = ((NDList) replica.getModel()).head();
+                            return new NDList(shardData.head().dot(weight).mean());
+                        };
+                // Failing replica, slow replica
+                IllegalStateException e =
+                        Assertions.assertTimeoutPreemptively(
+                                Duration.ofSeconds(30),
+                                () ->
+                                        Assertions.assertThrows(
+                                                IllegalStateException.class,
+                                                () ->
+                                                        parallel.step(
+                                                                data, labels, step, (r, m) -> {})));
+                Assertions.assertSame(failure, e.getCause());
+
+                // The next steps synchronize again
+                failing[0] = -1;
+                float loss =
+                        Assertions.assertTimeoutPreemptively(
+                                Duration.ofSeconds(30),
+                                () -> parallel.step(data, labels, step, (r, m) -> {}));
+                Assertions.assertEquals(4f, loss, 1e-5f);
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.training.ParameterStore;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/** Checks the decoding of {@link EncoderDecoder} against the one of each sequence alone. */
+public class EncoderDecoderTest {
+
+    private static final int VOCAB_SIZE = 10;
+    private static final int BATCH_SIZE = 4;
+    private static final int NUM_STEPS = 6;
+    private static final int MAX_STEPS = 8;
+    private static final int BOS = 1;
+
+    @Test
+    public void testPredictDropsFinishedRows() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            EncoderDecoder net = newNet(manager);
+            NDArray X = sources(manager);
+            NDArray validLen = manager.full(new Shape(BATCH_SIZE), NUM_STEPS, DataType.INT32);
+            int eos = commonToken(net, X, validLen);
+
+            int[][] batched = net.predict(X, validLen, BOS, eos, MAX_STEPS);
+            boolean dropped = false;
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                int[] alone = predictRow(net, X, validLen, i, eos);
+                Assertions.assertArrayEquals(alone, batched[i]);
+                dropped |= alone.length < MAX_STEPS;
+            }
+            // Some of the rows finished before the others
+            Assertions.assertTrue(dropped);
+        }
+    }
+
+    @Test
+    public void testBeamSizeOneIsGreedy() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            EncoderDecoder net = newNet(manager);
+            NDArray X = sources(manager);
+            NDArray validLen = manager.full(new Shape(BATCH_SIZE), NUM_STEPS, DataType.INT32);
+            int eos = commonToken(net, X, validLen);
+
+            int[][] greedy = net.predict(X, validLen, BOS, eos, MAX_STEPS);
+            int[][] beam = net.beamSearch(X, validLen, BOS, eos, 1, MAX_STEPS, 0);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                Assertions.assertArrayEquals(greedy[i], beam[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testBeamSearchRowsAreIndependent() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            EncoderDecoder net = newNet(manager);
+            NDArray X = sources(manager);
+            NDArray validLen = manager.full(new Shape(BATCH_SIZE), NUM_STEPS, DataType.INT32);
+            int eos = commonToken(net, X, validLen);
+
+            int[][] batched = net.beamSearch(X, validLen, BOS, eos, 3, MAX_STEPS, 0.75f);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                NDIndex row = new NDIndex("{}:{}", i, i + 1);
+                int[][] alone =
+                        net.beamSearch(
+                                X.get(row), validLen.get(row), BOS, eos, 3, MAX_STEPS, 0.75f);
+                Assertions.assertArrayEquals(alone[0], batched[i]);
+            }
+        }
+    }
+
+    private static EncoderDecoder newNet(NDManager manager) {
+        manager.getEngine().setRandomSeed(1234);
+        ParameterStore ps = new ParameterStore(manager, false);
+        JupyterSeq2SeqLearning.Seq2SeqEncoder encoder =
+                new JupyterSeq2SeqLearning.Seq2SeqEncoder(VOCAB_SIZE, 8, 16, 2, 0);
+        JupyterSeq2SeqLearning.Seq2SeqDecoder decoder =
+                new JupyterSeq2SeqLearning.Seq2SeqDecoder(VOCAB_SIZE, 8, 16, 2, 0);
+        NDArray X = manager.zeros(new Shape(BATCH_SIZE, NUM_STEPS));
+        encoder.initialize(manager, DataType.FLOAT32, X.getShape());
+        NDList state = decoder.initState(encoder.forward(ps, new NDList(X), false));
+        decoder.initialize(manager, DataType.FLOAT32, new NDList(X).addAll(state).getShapes());
+        return new EncoderDecoder(encoder, decoder);
+    }
+
+    private static NDArray sources(NDManager manager) {
+        return manager.randomInteger(
+                        2, VOCAB_SIZE, new Shape(BATCH_SIZE, NUM_STEPS), DataType.INT32)
+                .toType(DataType.FLOAT32, false);
+    }
+
+    /* A token predicted by some of the rows but not all, so that they finish at different steps */
+    private static int commonToken(EncoderDecoder net, NDArray X, NDArray validLen) {
+        int[][] outputs = net.predict(X, validLen, BOS, -1, MAX_STEPS);
+        for (int step = 0; step < MAX_STEPS; step++) {
+            int token = outputs[0][step];
+            int count = 0;
+            for (int[] output : outputs) {
+                for (int t : output) {
+                    if (t == token) {
+                        count++;
+                        break;
+                    }
+                }
+            }
+            if (count < outputs.length) {
+                return token;
+            }
+        }
+        return outputs[0][0];
+    }
+
+    private static int[] predictRow(
+            EncoderDecoder net, NDArray X, NDArray validLen, int row, int eos) {
+        NDIndex index = new NDIndex("{}:{}", row, row + 1);
+        return net.predict(X.get(index), validLen.get(index), BOS, eos, MAX_STEPS)[0];
+    }
+}
@@ -0,0 +1,95 @@
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.training.ParameterStore;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/** Checks that every masked attention path gives rows of length 0 the same uniform weights. */
+public class MaskedAttentionTest {
+
+    private static final int BATCH_SIZE = 3;
+    private static final int NUM_STEPS = 7;
+    private static final int DIM = 4;
+
+    @Test
+    public void testMaskedSoftmaxPathsAgree() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            NDArray X = manager.randomNormal(new Shape(BATCH_SIZE, NUM_STEPS, NUM_STEPS));
+            NDArray[] allLens = {
+                manager.create(new float[] {2, 0, 7}),
+                manager.create(new float[] {1, 0, 3, 7, 0, 2, 5}, new Shape(1, NUM_STEPS))
+                        .broadcast(BATCH_SIZE, NUM_STEPS)
+            };
+            for (NDArray validLens : allLens) {
+                NDArray fused = Chap10Utils.maskedSoftmax(X, validLens);
+                NDArray generic = Chap10Utils.maskedSoftmaxGeneric(X, validLens);
+                Assertions.assertTrue(fused.allClose(generic, 1e-5, 1e-6, false));
+            }
+            // The middle batch has no valid key, all of them are masked alike
+            NDArray weights = Chap10Utils.maskedSoftmax(X, allLens[0]);
+            Assertions.assertTrue(
+                    weights.get("1")
+                            .allClose(
+                                    manager.full(new Shape(NUM_STEPS, NUM_STEPS), 1f / NUM_STEPS)));
+            Assertions.assertTrue(
+                    weights.get("0, :, :2")
+                            .sum(new int[] {-1})
+                            .allClose(manager.ones(new Shape(NUM_STEPS))));
+        }
+    }
+
+    @Test
+    public void testAttentionPathsAgree() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            NDArray X = manager.randomNormal(new Shape(BATCH_SIZE, NUM_STEPS, DIM));
+            NDArray[] allLens = {
+                null,
+                manager.create(new float[] {4, 0, 7}),
+                manager.create(new float[] {1, 0, 3, 7, 0, 2, 5}, new Shape(1, NUM_STEPS))
+                        .broadcast(BATCH_SIZE, NUM_STEPS)
+            };
+            for (NDArray validLens : allLens) {
+                NDArray expected = forward(new DotProductAttention(0), X, validLens);
+                NDArray chunked = forward(DotProductAttention.chunked(0, 3), X, validLens);
+                // With the first key global, every query still sees all the keys
+                NDArray local =
+                        forward(DotProductAttention.local(0, NUM_STEPS - 2, 1), X, validLens);
+                Assertions.assertTrue(expected.allClose(chunked, 1e-4, 1e-5, false));
+                Assertions.assertTrue(expected.allClose(local, 1e-4, 1e-5, false));
+            }
+            // No valid key: the output is the mean of the values the query sees on every path
+            NDArray validLens = manager.create(new float[] {4, 0, 7});
+            NDArray mean = X.get("1").mean(new int[] {0}, true).broadcast(NUM_STEPS, DIM);
+            for (DotProductAttention attention :
+                    new DotProductAttention[] {
+                        new DotProductAttention(0), DotProductAttention.chunked(0, 3)
+                    }) {
+                NDArray output = forward(attention, X, validLens);
+                Assertions.assertTrue(output.get("1").allClose(mean, 1e-4, 1e-5, false));
+            }
+            // Within a window of 2 around the query, plus the first key which is global
+            NDArray output = forward(DotProductAttention.local(0, 2, 1), X, validLens);
+            Assertions.assertTrue(output.get("1, 0").allClose(mean.get("0")));
+            for (int query = 1; query < NUM_STEPS; query++) {
+                NDArray seen =
+                        X.get("1, {}:{}", Math.max(query - 2, 1), Math.min(query + 3, NUM_STEPS))
+                                .concat(X.get("1, :1"));
+                NDArray windowMean = seen.mean(new int[] {0});
+                Assertions.assertTrue(
+                        output.get("1, {}", query).allClose(windowMean, 1e-4, 1e-5, false));
+            }
+        }
+    }
+
+    private static NDArray forward(DotProductAttention attention, NDArray X, NDArray validLens) {
+        NDManager manager = X.getManager();
+        attention.initialize(manager, DataType.FLOAT32, X.getShape(), X.getShape());
+        // The same array as queries, keys and values, for self-attention
+        NDList inputs = new NDList(X, X, X, validLens);
+        return attention.forward(new ParameterStore(manager, false), inputs, false).head();
+    }
+}
@@ -0,0 +1,43 @@
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+/** Checks the leaks reported by {@link MemoryAuditor}. */
+public class MemoryAuditorTest {
+
+    @Test
+    public void testLeakIsTracedToCaller() {
+        PrintStream out = System.out;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        MemoryAuditor.enable();
+        try (NDManager manager = NDManager.newBaseManager()) {
+            NDArray kept = manager.ones(new Shape(2));
+            MemoryAuditor.beginScope("step", manager);
+            NDArray leaked = MemoryAuditor.track(manager.zeros(new Shape(3)));
+            MemoryAuditor.track(manager.zeros(new Shape(4))).close();
+            NDArray untracked = manager.zeros(new Shape(5));
+            System.setOut(new PrintStream(buffer, true));
+            List<NDArray> leaks = MemoryAuditor.endScope("step");
+
+            Assertions.assertEquals(2, leaks.size());
+            Assertions.assertTrue(leaks.contains(leaked));
+            Assertions.assertTrue(leaks.contains(untracked));
+            String report = buffer.toString();
+            Assertions.assertTrue(
+                    report.contains("MemoryAuditorTest.testLeakIsTracedToCaller"), report);
+            // Only the tracked leak has a place
+            Assertions.assertEquals(1, report.split("tracked at", -1).length - 1, report);
+            Assertions.assertNotNull(kept);
+        } finally {
+            System.setOut(out);
+            MemoryAuditor.disable();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.Parameter;
+import ai.djl.training.ParameterStore;
+import ai.djl.util.PairList;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/** Checks that both paths of the fused projection of {@link MultiHeadAttention} agree. */
+public class MultiHeadAttentionTest {
+
+    @Test
+    public void testFusedPathsAgree() {
+        int numHiddens = 8;
+        int numHeads = 2;
+        int numSteps = 5;
+        try (NDManager manager = NDManager.newBaseManager()) {
+            NDArray X = manager.randomNormal(new Shape(3, numSteps, numHiddens));
+            NDArray validLens = manager.create(new float[] {2, 5, 3});
+            Shape[] shapes = {X.getShape(), X.getShape(), X.getShape(), validLens.getShape()};
+
+            // The interleaved operators of MXNet
+            MultiHeadAttention interleaved =
+                    new MultiHeadAttention(numHiddens, numHeads, 0, false, true);
+            interleaved.initialize(manager, DataType.FLOAT32, shapes);
+            // A window covering the whole sequence, which takes the other path with all the keys
+            MultiHeadAttention split =
+                    new MultiHeadAttention(numHiddens, numHeads, 0, false, true, numSteps, 0);
+            split.initialize(manager, DataType.FLOAT32, shapes);
+            PairList<String, Parameter> from = interleaved.getParameters();
+            PairList<String, Parameter> to = split.getParameters();
+            for (int i = 0; i < from.size(); i++) {
+                to.valueAt(i).getArray().set(from.valueAt(i).getArray().toFloatArray());
+            }
+
+            ParameterStore ps = new ParameterStore(manager, false);
+            NDList inputs = new NDList(X, X, X, validLens);
+            NDArray expected = interleaved.forward(ps, inputs, false).head();
+            NDArray output = split.forward(ps, inputs, false).head();
+            Assertions.assertTrue(expected.allClose(output, 1e-4, 1e-5, false));
+        }
+    }
+}
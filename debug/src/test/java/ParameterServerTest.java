@@ -0,0 +1,151 @@
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.training.GradientCollector;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Checks the updates of {@link ParameterServer} in both modes. */
+public class ParameterServerTest {
+
+    private static final int NUM_ROWS = 16;
+    private static final int DIM = 3;
+    private static final int NUM_WORKERS = 4;
+
+    @Test
+    public void testSparseUpdateHogwild() {
+        checkSparseUpdate(ParameterServer.Mode.HOGWILD);
+    }
+
+    @Test
+    public void testSparseUpdateBoundedStaleness() {
+        checkSparseUpdate(ParameterServer.Mode.BOUNDED_STALENESS);
+    }
+
+    @Test
+    public void testConvergesHogwild() {
+        checkConverges(ParameterServer.Mode.HOGWILD);
+    }
+
+    @Test
+    public void testConvergesBoundedStaleness() {
+        checkConverges(ParameterServer.Mode.BOUNDED_STALENESS);
+    }
+
+    @Test
+    public void testFinishedWorkerIsNotWaitedFor() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            ParameterServer server =
+                    new ParameterServer(
+                            manager.zeros(new Shape(NUM_ROWS, DIM)),
+                            2,
+                            0.1f,
+                            ParameterServer.Mode.BOUNDED_STALENESS,
+                            1,
+                            4);
+            // Worker 0 stops after one step, worker 1 goes on alone
+            server.pull(0, new int[] {0});
+            server.clock(0);
+            server.finish(0);
+            Assertions.assertTimeoutPreemptively(
+                    Duration.ofSeconds(30),
+                    () -> {
+                        for (int step = 0; step < 10; step++) {
+                            server.pull(1, new int[] {1});
+                            server.clock(1);
+                        }
+                    });
+            Assertions.assertThrows(
+                    IllegalStateException.class, () -> server.pull(0, new int[] {0}));
+        }
+    }
+
+    /* Only the pulled rows change, by `lr` times the no. of times each token appears */
+    private static void checkSparseUpdate(ParameterServer.Mode mode) {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            NDArray table = manager.randomUniform(-1, 1, new Shape(NUM_ROWS, DIM));
+            ParameterServer server = new ParameterServer(table, 1, 0.5f, mode, 0, 4);
+            NDArray tokens = manager.create(new int[] {3, 7, 3, 12}, new Shape(2, 2));
+
+            ParameterServer.Rows rows = server.pull(0, tokens, manager);
+            Assertions.assertArrayEquals(new int[] {3, 7, 12}, rows.getIds());
+            try (GradientCollector gc = Engine.getInstance().newGradientCollector()) {
+                NDArray X = rows.embed();
+                Assertions.assertEquals(new Shape(2, 2, DIM), X.getShape());
+                gc.backward(X.sum());
+            }
+            server.push(rows);
+            server.clock(0);
+
+            NDArray counts = manager.zeros(new Shape(NUM_ROWS, 1));
+            counts.set(new NDIndex("3"), 2);
+            counts.set(new NDIndex("7"), 1);
+            counts.set(new NDIndex("12"), 1);
+            NDArray expected = table.sub(counts.mul(0.5f).broadcast(NUM_ROWS, DIM));
+            Assertions.assertTrue(server.getTable(manager).allClose(expected, 1e-5, 1e-6, false));
+            Assertions.assertEquals(3, server.getRowsPushed());
+            Assertions.assertEquals(3, server.getRowsPulled());
+        }
+    }
+
+    /*
+     * The workers fit every row to its index with the squared loss, each on its own rows plus
+     * rows shared with the next worker. The workers take different numbers of steps and finish
+     * one after the other
+     */
+    private static void checkConverges(ParameterServer.Mode mode) {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            ParameterServer server =
+                    new ParameterServer(
+                            manager.zeros(new Shape(NUM_ROWS, DIM)), NUM_WORKERS, 0.1f, mode, 2, 4);
+            ExecutorService executor = Executors.newFixedThreadPool(NUM_WORKERS);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int w = 0; w < NUM_WORKERS; w++) {
+                    int worker = w;
+                    int[] ids = new int[NUM_ROWS / NUM_WORKERS + 1];
+                    for (int i = 0; i < ids.length; i++) {
+                        ids[i] = (worker * (ids.length - 1) + i) % NUM_ROWS;
+                    }
+                    int numSteps = 100 + 20 * worker;
+                    futures.add(
+                            executor.submit(
+                                    () -> {
+                                        for (int step = 0; step < numSteps; step++) {
+                                            float[] rows = server.pull(worker, ids);
+                                            float[] grads = new float[rows.length];
+                                            for (int i = 0; i < rows.length; i++) {
+                                                grads[i] = rows[i] - ids[i / DIM];
+                                            }
+                                            server.push(ids, grads);
+                                            server.clock(worker);
+                                        }
+                                        server.finish(worker);
+                                    }));
+                }
+                Assertions.assertTimeoutPreemptively(
+                        Duration.ofSeconds(60),
+                        () -> {
+                            for (Future<?> future : futures) {
+                                future.get();
+                            }
+                        });
+            } finally {
+                executor.shutdownNow();
+            }
+            NDArray expected =
+                    manager.arange((float) NUM_ROWS).reshape(NUM_ROWS, 1).broadcast(NUM_ROWS, DIM);
+            Assertions.assertTrue(server.getTable(manager).allClose(expected, 1e-3, 1e-3, false));
+        }
+    }
+}
@@ -0,0 +1,47 @@
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.DataType;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/** Checks that the encodings handed out by {@link PositionalEncoding} stay valid. */
+public class PositionalEncodingTest {
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testEncodingsSurviveGrowth() {
+        int numHiddens = 6;
+        try (NDManager manager = NDManager.newBaseManager()) {
+            PositionalEncoding block = new PositionalEncoding(numHiddens, 0, 200, manager);
+            NDArray first = PositionalEncoding.encoding(3, numHiddens, DataType.FLOAT32, manager);
+            NDArray table = PositionalEncoding.encoding(4, numHiddens, DataType.FLOAT32, manager);
+            // Many lengths, and a table grown several times
+            for (int numSteps = 1; numSteps <= 200; numSteps++) {
+                try (NDManager sub = manager.newSubManager()) {
+                    NDArray P =
+                            PositionalEncoding.encoding(
+                                    numSteps, numHiddens, DataType.FLOAT32, sub);
+                    Assertions.assertSame(sub, P.getManager());
+                    Assertions.assertTrue(
+                            P.allClose(
+                                    block.P.get(new NDIndex(":, :{}", numSteps)),
+                                    1e-5,
+                                    1e-6,
+                                    false));
+                }
+            }
+            Assertions.assertTrue(
+                    first.allClose(block.P.get(new NDIndex(":, :3")), 1e-5, 1e-6, false));
+            Assertions.assertTrue(
+                    table.allClose(block.P.get(new NDIndex(":, :4")), 1e-5, 1e-6, false));
+
+            // The encodings belong to their manager, not to the tables
+            PositionalEncoding.clearCache();
+            Assertions.assertFalse(first.isReleased());
+            Assertions.assertTrue(
+                    first.allClose(block.P.get(new NDIndex(":, :3")), 1e-5, 1e-6, false));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import ai.djl.Device;
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.training.GradientCollector;
+import ai.djl.util.Pair;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/** Checks that {@link RNNModelScratch} gives the same results with index and one-hot inputs. */
+public class RNNModelScratchTest {
+
+    private static final int VOCAB_SIZE = 12;
+    private static final int NUM_HIDDENS = 16;
+    private static final int BATCH_SIZE = 3;
+    private static final int NUM_STEPS = 6;
+
+    @Test
+    public void testIndexInputMatchesOneHot() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            manager.getEngine().setRandomSeed(1234);
+            NDArray X =
+                    manager.randomInteger(
+                            0, VOCAB_SIZE, new Shape(BATCH_SIZE, NUM_STEPS), DataType.INT32);
+            NDArray h0 = manager.randomNormal(new Shape(BATCH_SIZE, NUM_HIDDENS));
+
+            RNNModelScratch oneHot = newScratch(manager, false);
+            RNNModelScratch index = newScratch(manager, true);
+            for (int i = 0; i < oneHot.params.size(); i++) {
+                index.params.get(i).set(oneHot.params.get(i).toFloatArray());
+            }
+            NDList oneHotResult = forwardBackward(oneHot, X, h0);
+            NDList indexResult = forwardBackward(index, X, h0);
+            Assertions.assertEquals(oneHotResult.size(), indexResult.size());
+            for (int i = 0; i < oneHotResult.size(); i++) {
+                Assertions.assertTrue(
+                        oneHotResult.get(i).allClose(indexResult.get(i), 1e-5, 1e-6, false),
+                        "result " + i + " differs");
+            }
+        }
+    }
+
+    @Test
+    public void testEmbedMatchesOneHotDot() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            NDArray X = manager.create(new int[] {3, 0, 11, 3, 5, 7}, new Shape(2, 3));
+            NDArray W = manager.randomNormal(new Shape(VOCAB_SIZE, 4));
+            NDArray expected = X.oneHot(VOCAB_SIZE).dot(W);
+            NDArray rows = RNNModelScratch.embed(X, W);
+            Assertions.assertEquals(new Shape(2, 3, 4), rows.getShape());
+            Assertions.assertTrue(expected.allClose(rows, 1e-6, 1e-7, false));
+        }
+    }
+
+    /* The outputs, the final state and the gradients of the parameters */
+    private static NDList forwardBackward(RNNModelScratch net, NDArray X, NDArray h0) {
+        NDList result = new NDList();
+        try (GradientCollector gc = Engine.getInstance().newGradientCollector()) {
+            Pair<NDArray, NDList> pair = net.forward(X, new NDList(h0));
+            gc.backward(pair.getKey().square().sum());
+            result.add(pair.getKey());
+            result.addAll(pair.getValue());
+        }
+        for (NDArray param : net.params) {
+            result.add(param.getGradient().duplicate());
+        }
+        return result;
+    }
+
+    private static RNNModelScratch newScratch(NDManager manager, boolean indexInput) {
+        Functions.TriFunction<Integer, Integer, Device, NDList> getParams =
+                (vocabSize, numHiddens, device) -> {
+                    NDList params =
+                            new NDList(
+                                    manager.randomNormal(new Shape(vocabSize, numHiddens)),
+                                    manager.randomNormal(new Shape(numHiddens, numHiddens)),
+                                    manager.zeros(new Shape(numHiddens)),
+                                    manager.randomNormal(new Shape(numHiddens, vocabSize)),
+                                    manager.zeros(new Shape(vocabSize)));
+                    for (NDArray param : params) {
+                        param.muli(0.1f).setRequiresGradient(true);
+                    }
+                    return params;
+                };
+        Functions.TriFunction<Integer, Integer, Device, NDList> initState =
+                (batchSize, numHiddens, device) ->
+                        new NDList(manager.zeros(new Shape(batchSize, numHiddens)));
+        return new RNNModelScratch(
+                VOCAB_SIZE,
+                NUM_HIDDENS,
+                manager.getDevice(),
+                getParams,
+                initState,
+                (X, state, params) -> rnn(X, state, params, indexInput),
+                indexInput);
+    }
+
+    private static Pair<NDArray, NDList> rnn(
+            NDArray X, NDList state, NDList params, boolean indexInput) {
+        NDArray H = state.get(0);
+        NDList outputs = new NDList();
+        for (int t = 0; t < X.getShape().get(0); t++) {
+            NDArray input =
+                    indexInput
+                            ? RNNModelScratch.embed(X.get(t), params.get(0))
+                            : X.get(t).dot(params.get(0));
+            H = input.add(H.dot(params.get(1))).add(params.get(2)).tanh();
+            outputs.add(H.dot(params.get(3)).add(params.get(4)));
+        }
+        return new Pair<>(NDArrays.concat(outputs), new NDList(H));
+    }
+}
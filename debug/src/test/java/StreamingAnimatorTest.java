@@ -0,0 +1,25 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/** Checks the bounded history of {@link StreamingAnimator}. */
+public class StreamingAnimatorTest {
+
+    @Test
+    public void testHistoryStaysBounded() {
+        for (int maxPoints = 6; maxPoints <= 9; maxPoints++) {
+            StreamingAnimator animator = new StreamingAnimator(maxPoints, 1);
+            for (int i = 0; i < 1000; i++) {
+                animator.add(i, (float) Math.sin(i / 10.0), "loss");
+            }
+            int rows = animator.getData().rowCount();
+            Assertions.assertTrue(rows > 0 && rows <= maxPoints, "rows: " + rows);
+            // The last point added is always kept
+            Assertions.assertEquals(999f, animator.getData().floatColumn("epoch").get(rows - 1));
+        }
+    }
+
+    @Test
+    public void testRejectsTooFewPoints() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new StreamingAnimator(5, 1));
+    }
+}
@@ -0,0 +1,110 @@
+import ai.djl.training.dataset.RandomAccessDataset;
+import ai.djl.training.dataset.Sampler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Samples batches of examples that have similar lengths.
+ *
+ * <p>The examples are put in buckets of {@code bucketWidth} consecutive lengths. Every batch is
+ * taken from a single bucket, so once the padding is trimmed to the longest example of the batch
+ * (see {@link TrimPadding}) little compute is spent on padding. When shuffling, the examples are
+ * shuffled within each bucket and the batches are shuffled across buckets at every epoch.
+ *
+ * <p>A batch holds at most {@code batchSize} examples. If {@code maxTokens} is positive, a batch
+ * also stops growing before its number of examples times its longest length exceeds {@code
+ * maxTokens}, so that batches of short examples are larger than batches of long ones.
+ */
+public class BucketSampler implements Sampler {
+
+    private int[] lengths;
+    private int batchSize;
+    private int bucketWidth;
+    private int maxTokens;
+    private boolean shuffle;
+    private Random random;
+
+    public BucketSampler(int[] lengths, int batchSize, int bucketWidth, boolean shuffle) {
+        this(lengths, batchSize, bucketWidth, 0, shuffle);
+    }
+
+    /**
+     * Constructor for BucketSampler.
+     *
+     * @param lengths the length of each example of the dataset
+     * @param batchSize the maximum number of examples in a batch
+     * @param bucketWidth the number of consecutive lengths that share a bucket
+     * @param maxTokens the maximum number of padded tokens in a batch, or 0 for no limit
+     * @param shuffle whether to shuffle the examples and the batches
+     */
+    public BucketSampler(
+            int[] lengths, int batchSize, int bucketWidth, int maxTokens, boolean shuffle) {
+        if (batchSize < 1 || bucketWidth < 1) {
+            throw new IllegalArgumentException("batchSize and bucketWidth must be positive");
+        }
+        this.lengths = lengths;
+        this.batchSize = batchSize;
+        this.bucketWidth = bucketWidth;
+        this.maxTokens = maxTokens;
+        this.shuffle = shuffle;
+        this.random = new Random();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Iterator<List<Long>> sample(RandomAccessDataset dataset) {
+        if (dataset.size() != lengths.length) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "The dataset has %d examples but %d lengths were given",
+                            dataset.size(), lengths.length));
+        }
+        List<List<Long>> buckets = new ArrayList<>();
+        for (int i = 0; i < lengths.length; i++) {
+            int bucket = Math.max(lengths[i] - 1, 0) / bucketWidth;
+            while (buckets.size() <= bucket) {
+                buckets.add(new ArrayList<>());
+            }
+            buckets.get(bucket).add((long) i);
+        }
+
+        List<List<Long>> batches = new ArrayList<>();
+        for (List<Long> bucket : buckets) {
+            if (shuffle) {
+                Collections.shuffle(bucket, random);
+            }
+            List<Long> batch = new ArrayList<>();
+            int maxLength = 0;
+            for (long index : bucket) {
+                int length = Math.max(maxLength, lengths[(int) index]);
+                boolean full =
+                        batch.size() == batchSize
+                                || (maxTokens > 0 && (batch.size() + 1) * length > maxTokens);
+                if (full && !batch.isEmpty()) {
+                    batches.add(batch);
+                    batch = new ArrayList<>();
+                    length = lengths[(int) index];
+                }
+                batch.add(index);
+                maxLength = length;
+            }
+            if (!batch.isEmpty()) {
+                batches.add(batch);
+            }
+        }
+        if (shuffle) {
+            Collections.shuffle(batches, random);
+        }
+        return batches.iterator();
+    }
+
+    /* The maximum number of examples in a batch, batches can be smaller */
+    @Override
+    public int getBatchSize() {
+        return batchSize;
+    }
+}
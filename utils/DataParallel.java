@@ -0,0 +1,397 @@
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.training.GradientCollector;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Synchronous data parallel training over replicas of a model in the same process.
+ *
+ * <p>Each replica has its own copy of the parameters, its own NDManager and its own thread. A step
+ * splits the batch along its first axis into one shard per replica. Every replica computes the
+ * gradients of its shard, then the replicas sum their gradients with a ring all-reduce over host
+ * buffers: in {@code numReplicas - 1} rounds, each replica adds a chunk of the buffer of the
+ * previous one to its own (reduce-scatter), then in {@code numReplicas - 1} more rounds it copies
+ * the reduced chunks it is missing (all-gather). Each replica moves about twice the size of the
+ * gradients whatever the number of replicas. At last every replica applies the same update to its
+ * parameters, so that they stay identical.
+ *
+ * <p>The loss of each shard is weighted by its share of the batch, so the summed gradients are the
+ * ones of the mean loss of the whole batch. With the MXNet engine, every operator already uses all
+ * the cores by default, set {@code OMP_NUM_THREADS} to the no. of cores divided by the no. of
+ * replicas so that the replicas do not compete for them.
+ *
+ * <p>With a {@link GradientCompressor}, the replicas exchange compressed gradients instead: each
+ * replica compresses its gradient plus the residual left by the previous steps, then every replica
+ * sums the decompressed gradients of all of them in the same order. Each replica then reads the
+ * compressed gradients of the others rather than about twice the size of the dense ones.
+ */
+public class DataParallel implements AutoCloseable {
+
+    /** A copy of the model trained by one thread. */
+    public static class Replica {
+
+        private int index;
+        private Object model;
+        private NDManager manager;
+        private NDList params;
+        private NDManager stateManager;
+        private NDList state;
+        private List<NDManager> retired = new ArrayList<>();
+
+        Replica(int index, Object model, NDManager manager) {
+            this.index = index;
+            this.model = model;
+            this.manager = manager;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public Object getModel() {
+            return model;
+        }
+
+        public NDManager getManager() {
+            return manager;
+        }
+
+        public NDList getState() {
+            return state;
+        }
+
+        /**
+         * Keeps {@code state} for the next step, such as the state of an rnn. The previous state is
+         * released at the end of the step, after backward.
+         */
+        public void setState(NDList state) {
+            if (stateManager != null) {
+                retired.add(stateManager);
+            }
+            stateManager = null;
+            if (state != null) {
+                stateManager = manager.newSubManager();
+                state.attach(stateManager);
+            }
+            this.state = state;
+        }
+
+        private void releaseRetired() {
+            for (NDManager retiredManager : retired) {
+                retiredManager.close();
+            }
+            retired.clear();
+        }
+    }
+
+    /** Computes the loss of a replica. */
+    public interface Step {
+
+        /**
+         * Computes the mean loss of a shard, called within a gradient collector.
+         *
+         * @param replica the replica
+         * @param data the shard of the data of the batch
+         * @param labels the shard of the labels of the batch
+         * @param manager the manager of the step, closed at the end of the step
+         * @return the mean loss of the shard, or the array to call backward on followed by the mean
+         *     loss when they differ, such as the surrogate of a {@code LossFusedModel}
+         */
+        NDList apply(Replica replica, NDList data, NDList labels, NDManager manager);
+    }
+
+    private List<Replica> replicas;
+    private List<ExecutorService> threads;
+    // The replicas wait for each other on it, terminated when one of them fails
+    private Phaser phaser;
+    // Gradients of the parameters of each replica, one after the other
+    private float[][] buffers;
+    // Start of each chunk of the buffers in the all-reduce, then their end
+    private int[] chunks;
+    private GradientCompressor compressor;
+    // What each replica could not send yet with the compressor
+    private float[][] residuals;
+    private GradientCompressor.Encoded[] encoded;
+    private AtomicLong bytesMoved = new AtomicLong();
+
+    /**
+     * Constructor for DataParallel. The parameters of all the replicas are set to the ones of the
+     * first replica.
+     *
+     * @param models the replicas of the model, already initialized, each in its own NDManager
+     * @param params returns the parameters of a replica, in the same order for all of them
+     */
+    public DataParallel(List<?> models, Function<Object, NDList> params) {
+        this(models, params, null);
+    }
+
+    /**
+     * Constructor for DataParallel. The parameters of all the replicas are set to the ones of the
+     * first replica.
+     *
+     * @param models the replicas of the model, already initialized, each in its own NDManager
+     * @param params returns the parameters of a replica, in the same order for all of them
+     * @param compressor compresses the gradients exchanged by the replicas, or null to exchange
+     *     them dense
+     */
+    public DataParallel(
+            List<?> models, Function<Object, NDList> params, GradientCompressor compressor) {
+        this.compressor = compressor;
+        replicas = new ArrayList<>();
+        threads = new ArrayList<>();
+        for (int i = 0; i < models.size(); i++) {
+            NDList values = params.apply(models.get(i));
+            Replica replica = new Replica(i, models.get(i), values.head().getManager());
+            replica.params = values;
+            replicas.add(replica);
+            threads.add(Executors.newSingleThreadExecutor());
+        }
+        phaser = new Phaser(replicas.size());
+
+        NDList first = replicas.get(0).params;
+        for (Replica replica : replicas.subList(1, replicas.size())) {
+            for (int i = 0; i < first.size(); i++) {
+                first.get(i).copyTo(replica.params.get(i));
+            }
+        }
+        int size = 0;
+        for (NDArray param : first) {
+            size += Math.toIntExact(param.size());
+        }
+        buffers = new float[replicas.size()][size];
+        chunks = new int[replicas.size() + 1];
+        for (int i = 0; i <= replicas.size(); i++) {
+            chunks[i] = (int) ((long) size * i / replicas.size());
+        }
+        if (compressor != null) {
+            residuals = new float[replicas.size()][size];
+            encoded = new GradientCompressor.Encoded[replicas.size()];
+        }
+    }
+
+    public List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    public int getNumReplicas() {
+        return replicas.size();
+    }
+
+    /* The no. of bytes of gradients the replicas read from each other so far */
+    public long getBytesMoved() {
+        return bytesMoved.get();
+    }
+
+    /**
+     * Trains all the replicas on a batch in lockstep.
+     *
+     * <p>If the step of a replica fails, the others stop at their next synchronization point
+     * instead of waiting for it, and the step throws the first failure. The parameters of the
+     * replicas may then differ, the next step starts a new synchronization.
+     *
+     * @param data the data of the batch, split along the first axis
+     * @param labels the labels of the batch, split along the first axis
+     * @param step computes the mean loss of the shard of a replica
+     * @param update updates the parameters of a replica from the summed gradients
+     * @return the mean loss of the batch
+     */
+    public float step(
+            NDList data,
+            NDList labels,
+            Step step,
+            Functions.voidTwoFunction<Replica, NDManager> update) {
+        long batchSize = data.head().getShape().get(0);
+        if (batchSize < replicas.size()) {
+            throw new IllegalArgumentException(
+                    "The batch size " + batchSize + " is smaller than the no. of replicas");
+        }
+        if (phaser.isTerminated()) {
+            phaser = new Phaser(replicas.size());
+        }
+        List<Future<Float>> losses = new ArrayList<>();
+        for (Replica replica : replicas) {
+            long from = batchSize * replica.index / replicas.size();
+            long to = batchSize * (replica.index + 1) / replicas.size();
+            losses.add(
+                    threads.get(replica.index)
+                            .submit(
+                                    () -> {
+                                        try {
+                                            return replicaStep(
+                                                    replica, data, labels, from, to, batchSize,
+                                                    step, update);
+                                        } catch (RuntimeException | Error e) {
+                                            // Releases the replicas waiting for this one, and the
+                                            // ones that have not arrived yet
+                                            phaser.forceTermination();
+                                            throw e;
+                                        }
+                                    }));
+        }
+        float loss = 0;
+        RuntimeException error = null;
+        for (Future<Float> future : losses) {
+            try {
+                loss += future.get();
+            } catch (ExecutionException e) {
+                // Report the failure rather than the replicas it stopped
+                if (error == null || !(e.getCause() instanceof CancellationException)) {
+                    error = new IllegalStateException("Replica step failed", e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = new IllegalStateException(e);
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return loss;
+    }
+
+    /* Shuts down the threads of the replicas, the caller closes the managers of the models */
+    @Override
+    public void close() {
+        for (Replica replica : replicas) {
+            replica.setState(null);
+        }
+        for (ExecutorService thread : threads) {
+            thread.shutdown();
+        }
+    }
+
+    private float replicaStep(
+            Replica replica,
+            NDList data,
+            NDList labels,
+            long from,
+            long to,
+            long batchSize,
+            Step step,
+            Functions.voidTwoFunction<Replica, NDManager> update) {
+        try (NDManager manager = replica.manager.newSubManager()) {
+            NDList shardData = shard(data, from, to, manager);
+            NDList shardLabels = shard(labels, from, to, manager);
+            float loss;
+            float weight = (float) (to - from) / batchSize;
+            try (GradientCollector gc = Engine.getInstance().newGradientCollector()) {
+                NDList result = step.apply(replica, shardData, shardLabels, manager);
+                // Weighted by the share of the batch, the sum of the gradients is then the
+                // gradient of the mean loss of the batch
+                gc.backward(result.head().mul(weight));
+                loss = result.get(result.size() - 1).getFloat() * weight;
+            }
+            replica.releaseRetired();
+
+            float[] buffer = buffers[replica.index];
+            int offset = 0;
+            for (NDArray param : replica.params) {
+                // `getGradient` returns a new handle every time, release it with the step
+                NDArray gradient = param.getGradient();
+                gradient.attach(manager);
+                float[] values = gradient.toFloatArray();
+                System.arraycopy(values, 0, buffer, offset, values.length);
+                offset += values.length;
+            }
+            if (compressor == null) {
+                allReduce(replica.index);
+            } else {
+                compressedAllReduce(replica.index);
+            }
+            offset = 0;
+            for (NDArray param : replica.params) {
+                NDArray gradient = param.getGradient();
+                gradient.attach(manager);
+                int size = Math.toIntExact(gradient.size());
+                gradient.set(FloatBuffer.wrap(buffer, offset, size).slice());
+                offset += size;
+            }
+
+            update.apply(replica, manager);
+            return loss;
+        }
+    }
+
+    /* Ring all-reduce of `buffers`, run by every replica at the same time */
+    private void allReduce(int rank) {
+        int n = replicas.size();
+        float[] buffer = buffers[rank];
+        float[] previous = buffers[(rank + n - 1) % n];
+        bytesMoved.addAndGet(8L * (chunks[n] - chunks[0]) * (n - 1) / n);
+        await();
+        // Reduce-scatter: in round `r`, add the chunk the previous replica reduced in round
+        // `r - 1`. At the end, the replica holds the sum of chunk `rank + 1`
+        for (int r = 0; r < n - 1; r++) {
+            int chunk = ((rank - r - 1) % n + n) % n;
+            for (int i = chunks[chunk]; i < chunks[chunk + 1]; i++) {
+                buffer[i] += previous[i];
+            }
+            await();
+        }
+        // All-gather: in round `r`, copy the summed chunk the previous replica got in round `r - 1`
+        for (int r = 0; r < n - 1; r++) {
+            int chunk = ((rank - r) % n + n) % n;
+            System.arraycopy(
+                    previous,
+                    chunks[chunk],
+                    buffer,
+                    chunks[chunk],
+                    chunks[chunk + 1] - chunks[chunk]);
+            await();
+        }
+    }
+
+    /* Sums the compressed gradients of all the replicas, with error feedback */
+    private void compressedAllReduce(int rank) {
+        float[] buffer = buffers[rank];
+        float[] residual = residuals[rank];
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] += residual[i];
+        }
+        GradientCompressor.Encoded sent = compressor.compress(buffer);
+        // The residual is what the decompressed gradient misses
+        System.arraycopy(buffer, 0, residual, 0, buffer.length);
+        sent.addTo(residual, -1);
+        encoded[rank] = sent;
+        bytesMoved.addAndGet(sent.getNumBytes() * (replicas.size() - 1));
+        await();
+        // The same order for all the replicas, so that they get the same sums
+        Arrays.fill(buffer, 0);
+        for (GradientCompressor.Encoded other : encoded) {
+            other.addTo(buffer, 1);
+        }
+        // Do not let a replica overwrite its compressed gradient before the others have read it
+        await();
+    }
+
+    /* Waits for all the replicas, throws if one of them failed */
+    private void await() {
+        if (phaser.arriveAndAwaitAdvance() < 0) {
+            throw new CancellationException("Another replica failed");
+        }
+    }
+
+    private static NDList shard(NDList arrays, long from, long to, NDManager manager) {
+        NDList result = new NDList();
+        for (NDArray array : arrays) {
+            result.add(array.get(new NDIndex("{}:{}", from, to)));
+        }
+        result.attach(manager);
+        return result;
+    }
+}
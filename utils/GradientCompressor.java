@@ -0,0 +1,217 @@
+/**
+ * Compresses the gradients a replica sends to the others in {@code DataParallel}.
+ *
+ * <p>The compressed gradients lose information: top-k sparsification only keeps the largest values,
+ * quantization rounds them. With error feedback, what a replica could not send in a step is kept as
+ * a residual and added to its gradient of the next step, so that no part of the gradient is lost
+ * but only delayed. {@code DataParallel} keeps the residual of each replica.
+ */
+public interface GradientCompressor {
+
+    /** A compressed gradient. */
+    interface Encoded {
+
+        /* Adds `scale` times the decompressed gradient to `buffer` */
+        void addTo(float[] buffer, float scale);
+
+        /* The no. of bytes another replica reads to decompress it */
+        long getNumBytes();
+    }
+
+    /* Compresses the flat gradient `gradient` */
+    Encoded compress(float[] gradient);
+
+    /**
+     * Keeps the {@code ratio} of the values of the largest magnitude, sent as pairs of an int index
+     * and a float value.
+     */
+    class TopK implements GradientCompressor {
+
+        private float ratio;
+
+        public TopK(float ratio) {
+            this.ratio = ratio;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public Encoded compress(float[] gradient) {
+            int k = Math.max(1, Math.min(gradient.length, (int) (gradient.length * ratio)));
+            float[] magnitudes = new float[gradient.length];
+            for (int i = 0; i < gradient.length; i++) {
+                magnitudes[i] = Math.abs(gradient[i]);
+            }
+            float threshold = select(magnitudes, gradient.length - k);
+            int[] indices = new int[k];
+            float[] values = new float[k];
+            int n = 0;
+            // Values above the threshold first, then values equal to it while there is room
+            for (int i = 0; i < gradient.length && n < k; i++) {
+                if (Math.abs(gradient[i]) > threshold) {
+                    indices[n] = i;
+                    values[n++] = gradient[i];
+                }
+            }
+            for (int i = 0; i < gradient.length && n < k; i++) {
+                if (Math.abs(gradient[i]) == threshold) {
+                    indices[n] = i;
+                    values[n++] = gradient[i];
+                }
+            }
+            int size = n;
+            return new Encoded() {
+                /** {@inheritDoc} */
+                @Override
+                public void addTo(float[] buffer, float scale) {
+                    for (int i = 0; i < size; i++) {
+                        buffer[indices[i]] += scale * values[i];
+                    }
+                }
+
+                /** {@inheritDoc} */
+                @Override
+                public long getNumBytes() {
+                    return 8L * size;
+                }
+            };
+        }
+
+        /* The `rank`-th smallest value of `a`, reorders `a` */
+        private static float select(float[] a, int rank) {
+            int lo = 0;
+            int hi = a.length - 1;
+            while (lo < hi) {
+                float pivot = a[(lo + hi) >>> 1];
+                int i = lo;
+                int j = hi;
+                while (i <= j) {
+                    while (a[i] < pivot) {
+                        i++;
+                    }
+                    while (a[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        float t = a[i];
+                        a[i++] = a[j];
+                        a[j--] = t;
+                    }
+                }
+                if (rank <= j) {
+                    hi = j;
+                } else if (rank >= i) {
+                    lo = i;
+                } else {
+                    break;
+                }
+            }
+            return a[rank];
+        }
+    }
+
+    /**
+     * Rounds the values to 8-bit integers. The values are split in buckets, each with a float scale
+     * such that its largest magnitude becomes 127.
+     */
+    class Int8 implements GradientCompressor {
+
+        private int bucketSize;
+
+        public Int8() {
+            this(512);
+        }
+
+        public Int8(int bucketSize) {
+            this.bucketSize = bucketSize;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public Encoded compress(float[] gradient) {
+            int numBuckets = (gradient.length + bucketSize - 1) / bucketSize;
+            byte[] codes = new byte[gradient.length];
+            float[] scales = new float[numBuckets];
+            for (int b = 0; b < numBuckets; b++) {
+                int end = Math.min(gradient.length, (b + 1) * bucketSize);
+                float max = 0;
+                for (int i = b * bucketSize; i < end; i++) {
+                    max = Math.max(max, Math.abs(gradient[i]));
+                }
+                scales[b] = max / 127;
+                if (max > 0) {
+                    for (int i = b * bucketSize; i < end; i++) {
+                        codes[i] = (byte) Math.round(gradient[i] / scales[b]);
+                    }
+                }
+            }
+            return new Encoded() {
+                /** {@inheritDoc} */
+                @Override
+                public void addTo(float[] buffer, float scale) {
+                    for (int i = 0; i < codes.length; i++) {
+                        buffer[i] += scale * scales[i / bucketSize] * codes[i];
+                    }
+                }
+
+                /** {@inheritDoc} */
+                @Override
+                public long getNumBytes() {
+                    return codes.length + 4L * scales.length;
+                }
+            };
+        }
+    }
+
+    /**
+     * Sends the sign of each value as one bit. The values are split in buckets, each with a float
+     * scale, the mean of its magnitudes.
+     */
+    class Sign implements GradientCompressor {
+
+        private int bucketSize;
+
+        public Sign() {
+            this(512);
+        }
+
+        public Sign(int bucketSize) {
+            this.bucketSize = bucketSize;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public Encoded compress(float[] gradient) {
+            int numBuckets = (gradient.length + bucketSize - 1) / bucketSize;
+            long[] bits = new long[(gradient.length + 63) / 64];
+            float[] scales = new float[numBuckets];
+            for (int b = 0; b < numBuckets; b++) {
+                int end = Math.min(gradient.length, (b + 1) * bucketSize);
+                float sum = 0;
+                for (int i = b * bucketSize; i < end; i++) {
+                    sum += Math.abs(gradient[i]);
+                    if (gradient[i] < 0) {
+                        bits[i >>> 6] |= 1L << i;
+                    }
+                }
+                scales[b] = sum / (end - b * bucketSize);
+            }
+            int length = gradient.length;
+            return new Encoded() {
+                /** {@inheritDoc} */
+                @Override
+                public void addTo(float[] buffer, float scale) {
+                    for (int i = 0; i < length; i++) {
+                        float value = scale * scales[i / bucketSize];
+                        buffer[i] += (bits[i >>> 6] & (1L << i)) != 0 ? -value : value;
+                    }
+                }
+
+                /** {@inheritDoc} */
+                @Override
+                public long getNumBytes() {
+                    return 8L * bits.length + 4L * scales.length;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,210 @@
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Audits the lifetime of the NDArrays created by a training loop.
+ *
+ * <p>The utilities move arrays between NDManagers by hand ({@code attach}, {@code detach}, sub
+ * managers closed at the end of an epoch). A single mistake leaks native memory a little every
+ * epoch. When enabled, the auditor
+ *
+ * <ul>
+ *   <li>counts the live arrays and bytes held by every manager below a root manager and reports the
+ *       growth after each epoch,
+ *   <li>flags the arrays created inside a scope that are still alive when the scope ends, with
+ *       their shape, data type and manager,
+ *   <li>tells whether the memory has stopped growing, see {@link #isSteady(int)}.
+ * </ul>
+ *
+ * <p>The engines do not tell when an array is allocated, so the auditor cannot say where a leaked
+ * array comes from. An array passed to {@link #track(NDArray)} right after its allocation is
+ * reported with the place it was tracked at.
+ *
+ * <p>Like {@link TrainingProfiler}, it is off by default and all hooks return immediately.
+ */
+public class MemoryAuditor {
+
+    private static boolean enabled;
+
+    // The place each tracked array was tracked at, by uid, until it is released
+    private static Map<String, TrackSite> trackSites = new HashMap<>();
+    private static Map<String, Set<String>> scopes = new HashMap<>();
+    private static Map<String, NDManager> scopeManagers = new HashMap<>();
+    private static Map<String, long[]> lastUsage = new HashMap<>();
+    private static List<Long> history = new ArrayList<>();
+
+    private MemoryAuditor() {}
+
+    public static void enable() {
+        enabled = true;
+        trackSites.clear();
+        scopes.clear();
+        scopeManagers.clear();
+        lastUsage.clear();
+        history.clear();
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records the place where {@code array} is tracked, so that a leak can be traced back to it.
+     * Call it right after the array is allocated, the place is the first frame of the stack outside
+     * of the auditor.
+     *
+     * @param array the array to track
+     * @return the array
+     */
+    public static NDArray track(NDArray array) {
+        if (!enabled) {
+            return array;
+        }
+        String site = "unknown";
+        for (StackTraceElement frame : Thread.currentThread().getStackTrace()) {
+            String className = frame.getClassName();
+            if (!className.equals(Thread.class.getName())
+                    && !className.equals(MemoryAuditor.class.getName())) {
+                site = frame.toString();
+                break;
+            }
+        }
+        trackSites.put(array.getUid(), new TrackSite(array, site));
+        return array;
+    }
+
+    /* Remembers the arrays alive in `manager`, the ones created after this belong to `name` */
+    public static void beginScope(String name, NDManager manager) {
+        if (!enabled) {
+            return;
+        }
+        Set<String> alive = new HashSet<>();
+        for (NDArray array : manager.getManagedArrays()) {
+            alive.add(array.getUid());
+        }
+        scopes.put(name, alive);
+        scopeManagers.put(name, manager);
+    }
+
+    /**
+     * Reports the arrays created since {@link #beginScope(String, NDManager)} that are still alive.
+     *
+     * @param name the name of the scope
+     * @return the arrays that outlived the scope
+     */
+    public static List<NDArray> endScope(String name) {
+        List<NDArray> leaked = new ArrayList<>();
+        if (!enabled || !scopes.containsKey(name)) {
+            return leaked;
+        }
+        pruneTrackSites();
+        Set<String> alive = scopes.remove(name);
+        NDManager manager = scopeManagers.remove(name);
+        for (NDArray array : manager.getManagedArrays()) {
+            if (!array.isReleased() && !alive.contains(array.getUid())) {
+                leaked.add(array);
+            }
+        }
+        if (!leaked.isEmpty()) {
+            System.out.format("%d arrays outlived scope '%s':%n", leaked.size(), name);
+            for (NDArray array : leaked) {
+                TrackSite site = trackSites.get(array.getUid());
+                System.out.format(
+                        "  %s %s in %s%s%n",
+                        array.getShape(),
+                        array.getDataType(),
+                        array.getManager().getName(),
+                        site == null ? "" : ", tracked at " + site.where);
+            }
+        }
+        return leaked;
+    }
+
+    /* Prints the live arrays and bytes held by each manager under `manager` and their growth */
+    public static void epoch(int epoch, NDManager manager) {
+        if (!enabled) {
+            return;
+        }
+        pruneTrackSites();
+        // Number of arrays and number of bytes for each manager
+        Map<String, long[]> usage = new LinkedHashMap<>();
+        long total = 0;
+        for (NDArray array : manager.getManagedArrays()) {
+            if (array.isReleased()) {
+                continue;
+            }
+            long bytes = array.size() * array.getDataType().getNumOfBytes();
+            long[] counts = usage.computeIfAbsent(array.getManager().getName(), k -> new long[2]);
+            counts[0] += 1;
+            counts[1] += bytes;
+            total += bytes;
+        }
+
+        System.out.format("epoch %d native memory:%n", epoch);
+        System.out.format("%-40s %8s %12s %12s%n", "manager", "arrays", "bytes", "growth");
+        for (Map.Entry<String, long[]> entry : usage.entrySet()) {
+            long[] last = lastUsage.getOrDefault(entry.getKey(), new long[2]);
+            System.out.format(
+                    "%-40s %8d %12d %+12d%n",
+                    entry.getKey(),
+                    entry.getValue()[0],
+                    entry.getValue()[1],
+                    entry.getValue()[1] - last[1]);
+        }
+        lastUsage = usage;
+        history.add(total);
+    }
+
+    /* Whether the total live bytes have not grown during the last `epochs` epochs */
+    public static boolean isSteady(int epochs) {
+        if (history.size() <= epochs) {
+            return false;
+        }
+        for (int i = history.size() - epochs; i < history.size(); i++) {
+            if (history.get(i) > history.get(i - 1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static List<Long> getHistory() {
+        return history;
+    }
+
+    /* Forgets the arrays that have been released or collected */
+    private static void pruneTrackSites() {
+        trackSites
+                .values()
+                .removeIf(
+                        site -> {
+                            NDArray array = site.array.get();
+                            return array == null || array.isReleased();
+                        });
+    }
+
+    /* A tracked array, not kept alive by the auditor, and where it was tracked */
+    private static final class TrackSite {
+
+        WeakReference<NDArray> array;
+        String where;
+
+        TrackSite(NDArray array, String where) {
+            this.array = new WeakReference<>(array);
+            this.where = where;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+import ai.djl.Device;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.Parameter;
+import ai.djl.nn.core.Linear;
+import ai.djl.training.ParameterStore;
+
+/**
+ * Mixed precision training with dynamic loss scaling.
+ *
+ * <p>The parameters stay in float32, they are the master weights updated by the optimizer. Every
+ * step, the forward and backward passes run on copies cast to a half precision type, float16 or
+ * bfloat16. The casts are recorded by autograd, so the gradients still reach the float32
+ * parameters. The loss is computed in float32.
+ *
+ * <p>Small gradients underflow in float16, so the loss is multiplied by a scale before backward and
+ * the gradients are divided by it before clipping and the update. When a gradient overflows to
+ * infinity or NaN, the step is skipped and the scale is halved. After {@code growthInterval} steps
+ * in a row without overflow, the scale is doubled.
+ *
+ * <p>Whether the half precision matrix multiplications are available depends on the engine and the
+ * device, see {@link #isSupported(NDManager)}. The MXNet CPU build, for instance, has no float16
+ * matrix multiplication and no bfloat16 at all.
+ */
+public class MixedPrecision {
+
+    private DataType dataType;
+    private float lossScale;
+    private int growthInterval;
+    private int goodSteps;
+    private int numSkipped;
+    private NDManager stepManager;
+
+    public MixedPrecision(DataType dataType) {
+        this(dataType, 65536, 2000);
+    }
+
+    /**
+     * Constructor for MixedPrecision.
+     *
+     * @param dataType the data type of the forward and backward passes
+     * @param initialScale the initial loss scale
+     * @param growthInterval the no. of steps without overflow before the scale is doubled
+     */
+    public MixedPrecision(DataType dataType, float initialScale, int growthInterval) {
+        this.dataType = dataType;
+        this.lossScale = initialScale;
+        this.growthInterval = growthInterval;
+    }
+
+    /* Whether the engine of `manager` can multiply matrices of `dataType` on its device */
+    public static boolean isSupported(DataType dataType, NDManager manager) {
+        try (NDManager sub = manager.newSubManager()) {
+            NDArray x = sub.ones(new Shape(2, 2)).toType(dataType, false);
+            Linear.linear(x, x, x.get(0)).head().toType(DataType.FLOAT32, false).getFloat(0, 0);
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    public boolean isSupported(NDManager manager) {
+        return isSupported(dataType, manager);
+    }
+
+    /**
+     * Returns a parameter store for one training step that gives the floating point parameters cast
+     * to the data type of the forward pass. Each parameter is cast once per step, the copies are
+     * released when the store of the next step is created, so the arrays kept from one step to the
+     * next must not belong to their manager.
+     *
+     * @param manager the manager of the parameter store, the blocks initialized by their first
+     *     forward pass get their parameters from it
+     * @return the parameter store
+     */
+    public ParameterStore newParameterStore(NDManager manager) {
+        if (stepManager != null) {
+            stepManager.close();
+        }
+        NDManager copies = manager.newSubManager();
+        stepManager = copies;
+        return new ParameterStore(manager, false) {
+            /** {@inheritDoc} */
+            @Override
+            public NDArray getValue(Parameter parameter, Device device, boolean training) {
+                NDArray value = super.getValue(parameter, device, training);
+                if (!value.getDataType().isFloating() || value.getDataType() == dataType) {
+                    return value;
+                }
+                return castAndAttach(value, copies);
+            }
+        };
+    }
+
+    /**
+     * Casts the floating point arrays of {@code arrays} to the data type of the forward pass, for
+     * parameters that are not in a block. The copies are released with the ones of the parameter
+     * store of the step.
+     *
+     * @param arrays the arrays to cast
+     * @return the arrays in the data type of the forward pass
+     */
+    public NDList cast(NDList arrays) {
+        NDList result = new NDList();
+        for (NDArray array : arrays) {
+            boolean keep = !array.getDataType().isFloating() || array.getDataType() == dataType;
+            result.add(keep ? array : castAndAttach(array, stepManager));
+        }
+        return result;
+    }
+
+    /* The float32 loss multiplied by the loss scale, to call backward on */
+    public NDArray scale(NDArray loss) {
+        return loss.toType(DataType.FLOAT32, false).mul(lossScale);
+    }
+
+    /**
+     * Divides the gradients of {@code params} by the loss scale and updates the scale.
+     *
+     * @param params the float32 parameters
+     * @param manager the manager of the step
+     * @return whether the gradients are finite, the step must be skipped otherwise
+     */
+    public boolean unscale(NDList params, NDManager manager) {
+        float check = 0;
+        for (NDArray param : params) {
+            // `getGradient` returns a new handle every time, release it with the step
+            NDArray gradient = param.getGradient();
+            gradient.attach(manager);
+            gradient.divi(lossScale);
+            // NaN if there is an infinity or a NaN and 0 otherwise, MXNet has no `isInfinite`
+            check += gradient.mul(0).sum().getFloat();
+        }
+        if (Float.isNaN(check)) {
+            lossScale /= 2;
+            goodSteps = 0;
+            numSkipped++;
+            return false;
+        }
+        if (++goodSteps == growthInterval) {
+            lossScale *= 2;
+            goodSteps = 0;
+        }
+        return true;
+    }
+
+    public DataType getDataType() {
+        return dataType;
+    }
+
+    public float getLossScale() {
+        return lossScale;
+    }
+
+    public int getNumSkipped() {
+        return numSkipped;
+    }
+
+    private NDArray castAndAttach(NDArray array, NDManager manager) {
+        NDArray copy = array.toType(dataType, false);
+        // Results of operations on a parameter belong to its manager
+        copy.attach(manager);
+        return copy;
+    }
+}
@@ -1,23 +1,30 @@
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDManager;
-import ai.djl.ndarray.index.NDIndex;
 import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
 import ai.djl.training.dataset.ArrayDataset;
 import ai.djl.training.util.DownloadUtils;
+import ai.djl.translate.Pipeline;
 import ai.djl.util.Pair;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.stream.IntStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 public class NMT {
 
@@ -36,29 +43,122 @@ public class NMT {
         return null;
     }
 
+    /* Open the English-French dataset as a stream of lines, without reading it into memory */
+    public static BufferedReader openDataNMT() throws IOException {
+        DownloadUtils.download(
+                "http://d2l-data.s3-accelerate.amazonaws.com/fra-eng.zip", "fra-eng.zip");
+        ZipInputStream zis = new ZipInputStream(new FileInputStream("fra-eng.zip"));
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            if (entry.getName().contains("fra.txt")) {
+                return new BufferedReader(new InputStreamReader(zis, StandardCharsets.UTF_8));
+            }
+        }
+        zis.close();
+        throw new FileNotFoundException("fra.txt not found in fra-eng.zip");
+    }
+
+    // Characters in front of which a space is inserted, indexed by character
+    private static final boolean[] PUNCTUATION = new boolean[128];
+    // Preprocessed form of the Latin-1 characters: lowercase, non-breaking space mapped to space
+    private static final char[] LATIN1 = new char[256];
+
+    static {
+        for (char c : new char[] {',', '.', '!', '?'}) {
+            PUNCTUATION[c] = true;
+        }
+        for (char c = 0; c < LATIN1.length; c++) {
+            LATIN1[c] = Character.toLowerCase(c);
+        }
+        LATIN1['\u00a0'] = ' ';
+    }
+
     public static String preprocessNMT(String text) {
-        // Replace non-breaking space with space, and convert uppercase letters to
-        // lowercase ones
-
-        text = text.replace('\u202f', ' ').replaceAll("\\xa0", " ").toLowerCase();
-
-        // Insert space between words and punctuation marks
-        StringBuilder out = new StringBuilder();
-        Character currChar;
-        for (int i = 0; i < text.length(); i++) {
-            currChar = text.charAt(i);
-            if (i > 0 && noSpace(currChar, text.charAt(i - 1))) {
-                out.append(' ');
+        return preprocessNMT(text, 1);
+    }
+
+    /**
+     * Preprocess the English-French dataset in a single pass over the characters.
+     *
+     * <p>Non-breaking spaces are replaced with spaces, letters are converted to lowercase and a
+     * space is inserted between words and punctuation marks. The text is split into {@code
+     * numChunks} chunks aligned on line boundaries that are processed in parallel.
+     *
+     * <p>Letters are lowercased one character at a time, independently of the default locale,
+     * unlike {@code String.toLowerCase()} which can change the length of a few non-latin letters.
+     */
+    public static String preprocessNMT(String text, int numChunks) {
+        int length = text.length();
+        // Start of each chunk, moved forward to the start of the next line
+        int[] starts = new int[numChunks + 1];
+        for (int i = 1; i < numChunks; i++) {
+            int start = Math.max((int) ((long) length * i / numChunks), starts[i - 1]);
+            int newline = text.indexOf('\n', start);
+            starts[i] = newline < 0 ? length : newline + 1;
+        }
+        starts[numChunks] = length;
+
+        char[][] outputs = new char[numChunks][];
+        int[] sizes = new int[numChunks];
+        IntStream.range(0, numChunks)
+                .parallel()
+                .forEach(
+                        i -> {
+                            // A space is inserted at most once per character
+                            outputs[i] = new char[2 * (starts[i + 1] - starts[i])];
+                            char prevChar =
+                                    starts[i] > 0 ? normalize(text.charAt(starts[i] - 1)) : 0;
+                            sizes[i] =
+                                    preprocessChunk(
+                                            text, starts[i], starts[i + 1], prevChar, outputs[i]);
+                        });
+
+        char[] out = new char[Arrays.stream(sizes).sum()];
+        int offset = 0;
+        for (int i = 0; i < numChunks; i++) {
+            System.arraycopy(outputs[i], 0, out, offset, sizes[i]);
+            offset += sizes[i];
+        }
+        return new String(out);
+    }
+
+    /* Preprocess a single line the same way as `preprocessNMT`, `first` if it starts the text */
+    public static String preprocessLineNMT(String line, boolean first) {
+        char[] out = new char[2 * line.length()];
+        int size = preprocessChunk(line, 0, line.length(), first ? 0 : '\n', out);
+        return new String(out, 0, size);
+    }
+
+    /*
+     * Preprocess text[start:end] into `out` and return the number of characters written.
+     * `prevChar` is the preprocessed character before `start`, 0 at the start of the text.
+     */
+    private static int preprocessChunk(String text, int start, int end, char prevChar, char[] out) {
+        int size = 0;
+        for (int i = start; i < end; i++) {
+            char currChar = normalize(text.charAt(i));
+            if (prevChar != 0
+                    && prevChar != ' '
+                    && currChar < PUNCTUATION.length
+                    && PUNCTUATION[currChar]) {
+                out[size++] = ' ';
             }
-            out.append(currChar);
+            out[size++] = currChar;
+            prevChar = currChar;
         }
-        return out.toString();
+        return size;
+    }
+
+    private static char normalize(char c) {
+        if (c < LATIN1.length) {
+            return LATIN1[c];
+        }
+        return c == '\u202f' ? ' ' : Character.toLowerCase(c);
     }
 
     public static boolean noSpace(Character currChar, Character prevChar) {
         /* Preprocess the English-French dataset. */
-        return new HashSet<>(Arrays.asList(',', '.', '!', '?')).contains(currChar)
-                && prevChar != ' ';
+        return currChar < PUNCTUATION.length && PUNCTUATION[currChar] && prevChar != ' ';
     }
 
     public static Pair<ArrayList<String[]>, ArrayList<String[]>> tokenizeNMT(
@@ -81,59 +181,189 @@ public class NMT {
         return new Pair<>(source, target);
     }
 
+    /**
+     * Read, preprocess and tokenize the dataset line by line, mapping every token to an id as soon
+     * as it is read.
+     *
+     * <p>Only the first {@code numExamples} lines are read, or all of them if it is null. Tokens
+     * get a temporary id in the order they are first seen while their frequencies are counted. Once
+     * all lines are read, the vocabularies are built from the counts exactly like {@link
+     * #tokenizeNMT(String, Integer)} followed by {@code new Vocab(...)} would, and the temporary
+     * ids are remapped in place. Neither the text nor the token strings of a sentence are kept.
+     *
+     * @return the source and target sentences as token ids, and the source and target vocabularies
+     */
+    public static Pair<Pair<ArrayList<int[]>, ArrayList<int[]>>, Pair<Vocab, Vocab>> streamNMT(
+            Integer numExamples, int minFreq, String[] reservedTokens) throws IOException {
+        ArrayList<int[]> source = new ArrayList<>();
+        ArrayList<int[]> target = new ArrayList<>();
+        TokenIds srcIds = new TokenIds();
+        TokenIds tgtIds = new TokenIds();
+        try (BufferedReader reader = openDataNMT()) {
+            String line;
+            int i = 0;
+            while ((numExamples == null || i < numExamples) && (line = reader.readLine()) != null) {
+                String[] parts = preprocessLineNMT(line, i == 0).split("\t");
+                if (parts.length == 2) {
+                    source.add(srcIds.encode(parts[0].split(" ")));
+                    target.add(tgtIds.encode(parts[1].split(" ")));
+                }
+                i += 1;
+            }
+        }
+        Vocab srcVocab = srcIds.toVocab(source, minFreq, reservedTokens);
+        Vocab tgtVocab = tgtIds.toVocab(target, minFreq, reservedTokens);
+        return new Pair<>(new Pair<>(source, target), new Pair<>(srcVocab, tgtVocab));
+    }
+
+    /* Assigns ids to tokens in the order they are first seen and counts them */
+    private static final class TokenIds {
+
+        private HashMap<String, Integer> ids = new HashMap<>();
+        private ArrayList<String> tokens = new ArrayList<>();
+        private int[] counts = new int[1024];
+
+        int[] encode(String[] line) {
+            int[] encoded = new int[line.length];
+            for (int i = 0; i < line.length; i++) {
+                Integer id = ids.get(line[i]);
+                if (id == null) {
+                    id = tokens.size();
+                    ids.put(line[i], id);
+                    tokens.add(line[i]);
+                    if (id == counts.length) {
+                        counts = Arrays.copyOf(counts, 2 * counts.length);
+                    }
+                }
+                // Empty tokens are not counted, like in `Vocab.countCorpus2D`
+                if (!line[i].isEmpty()) {
+                    counts[id]++;
+                }
+                encoded[i] = id;
+            }
+            return encoded;
+        }
+
+        /* Build the vocabulary and replace the temporary ids in `lines` with its ids */
+        Vocab toVocab(ArrayList<int[]> lines, int minFreq, String[] reservedTokens) {
+            LinkedHashMap<String, Integer> counter = new LinkedHashMap<>();
+            for (int i = 0; i < tokens.size(); i++) {
+                if (counts[i] > 0) {
+                    counter.put(tokens.get(i), counts[i]);
+                }
+            }
+            Vocab vocab = new Vocab(counter, minFreq, reservedTokens);
+            int[] remap = new int[tokens.size()];
+            for (int i = 0; i < remap.length; i++) {
+                remap[i] = vocab.getIdx(tokens.get(i));
+            }
+            for (int[] line : lines) {
+                for (int i = 0; i < line.length; i++) {
+                    line[i] = remap[line[i]];
+                }
+            }
+            return vocab;
+        }
+    }
+
     public static int[] truncatePad(Integer[] integerLine, int numSteps, int paddingToken) {
         /* Truncate or pad sequences */
-        int[] line = Arrays.stream(integerLine).mapToInt(i -> i).toArray();
-        if (line.length > numSteps) {
-            return Arrays.copyOfRange(line, 0, numSteps);
-        }
-        int[] paddingTokenArr = new int[numSteps - line.length]; // Pad
-        Arrays.fill(paddingTokenArr, paddingToken);
+        return truncatePad(
+                Arrays.stream(integerLine).mapToInt(i -> i).toArray(), numSteps, paddingToken);
+    }
 
-        return IntStream.concat(Arrays.stream(line), Arrays.stream(paddingTokenArr)).toArray();
+    public static int[] truncatePad(int[] line, int numSteps, int paddingToken) {
+        /* Truncate or pad sequences */
+        int[] padded = Arrays.copyOf(line, numSteps);
+        if (line.length < numSteps) {
+            Arrays.fill(padded, line.length, numSteps, paddingToken); // Pad
+        }
+        return padded;
     }
 
     public static Pair<NDArray, NDArray> buildArrayNMT(
             ArrayList<String[]> lines, Vocab vocab, int numSteps, NDManager manager) {
         /* Transform text sequences of machine translation into minibatches. */
-        ArrayList<Integer[]> linesIntArr = new ArrayList<>();
+        ArrayList<int[]> ids = new ArrayList<>();
         for (String[] strings : lines) {
-            linesIntArr.add(vocab.getIdxs(strings));
-        }
-        for (int i = 0; i < linesIntArr.size(); i++) {
-            ArrayList<Integer> temp = new ArrayList<>(Arrays.asList(linesIntArr.get(i)));
-            temp.add(vocab.getIdx("<eos>"));
-            linesIntArr.set(i, temp.toArray(new Integer[0]));
+            int[] line = new int[strings.length];
+            for (int i = 0; i < strings.length; i++) {
+                line[i] = vocab.getIdx(strings[i]);
+            }
+            ids.add(line);
         }
+        return buildArrayNMT(ids, vocab, numSteps, manager);
+    }
 
-        NDArray arr = manager.create(new Shape(linesIntArr.size(), numSteps), DataType.INT32);
-        int row = 0;
-        for (Integer[] line : linesIntArr) {
-            NDArray rowArr = manager.create(truncatePad(line, numSteps, vocab.getIdx("<pad>")));
-            arr.set(new NDIndex("{}:", row), rowArr);
-            row += 1;
+    public static Pair<NDArray, NDArray> buildArrayNMT(
+            List<int[]> lines, Vocab vocab, int numSteps, NDManager manager) {
+        /*
+         * Transform sentences of token ids into minibatches. All the rows are written into a
+         * single buffer, appending <eos> and padding in place, and the valid lengths are counted
+         * along the way, so that each NDArray is created with a single native call.
+         */
+        int eos = vocab.getIdx("<eos>");
+        int pad = vocab.getIdx("<pad>");
+        int[] data = new int[lines.size() * numSteps];
+        long[] validLen = new long[lines.size()];
+        int offset = 0;
+        for (int row = 0; row < lines.size(); row++) {
+            int[] ids = lines.get(row);
+            int length = Math.min(ids.length, numSteps);
+            System.arraycopy(ids, 0, data, offset, length);
+            if (length < numSteps) {
+                data[offset + length] = eos;
+                length += 1;
+            }
+            Arrays.fill(data, offset + length, offset + numSteps, pad);
+            long count = 0;
+            for (int i = offset; i < offset + length; i++) {
+                if (data[i] != pad) {
+                    count += 1;
+                }
+            }
+            validLen[row] = count;
+            offset += numSteps;
         }
-        NDArray validLen = arr.neq(vocab.getIdx("<pad>")).sum(new int[] {1});
-        return new Pair<>(arr, validLen);
+        NDArray arr = manager.create(data, new Shape(lines.size(), numSteps));
+        return new Pair<>(arr, manager.create(validLen));
     }
 
     public static Pair<ArrayDataset, Pair<Vocab, Vocab>> loadDataNMT(
             int batchSize, int numSteps, int numExamples, NDManager manager) throws IOException {
-        /* Return the iterator and the vocabularies of the translation dataset. */
-        String text = preprocessNMT(readDataNMT());
-        Pair<ArrayList<String[]>, ArrayList<String[]>> pair = tokenizeNMT(text, numExamples);
-        ArrayList<String[]> source = pair.getKey();
-        ArrayList<String[]> target = pair.getValue();
-        Vocab srcVocab =
-                new Vocab(
-                        source.toArray(new String[0][]),
-                        2,
-                        new String[] {"<pad>", "<bos>", "<eos>"});
-        Vocab tgtVocab =
-                new Vocab(
-                        target.toArray(new String[0][]),
-                        2,
-                        new String[] {"<pad>", "<bos>", "<eos>"});
+        return loadDataNMT(batchSize, numSteps, numExamples, 0, manager);
+    }
+
+    public static Pair<ArrayDataset, Pair<Vocab, Vocab>> loadDataNMT(
+            int batchSize, int numSteps, int numExamples, int bucketWidth, NDManager manager)
+            throws IOException {
+        return loadDataNMT(batchSize, numSteps, numExamples, bucketWidth, 0, manager);
+    }
+
+    /**
+     * Return the iterator and the vocabularies of the translation dataset.
+     *
+     * <p>If {@code bucketWidth} is positive, the batches are sampled by a {@link BucketSampler}
+     * from sentences of similar lengths, and padded only up to their longest sentence instead of
+     * {@code numSteps}. If {@code maxTokens} is positive, the number of sentences of a batch is
+     * also chosen so that it times the longest sentence stays under {@code maxTokens}, and the
+     * batches hold at most {@code batchSize} sentences. Without buckets the batches are then
+     * sampled from all the sentences.
+     */
+    public static Pair<ArrayDataset, Pair<Vocab, Vocab>> loadDataNMT(
+            int batchSize,
+            int numSteps,
+            int numExamples,
+            int bucketWidth,
+            int maxTokens,
+            NDManager manager)
+            throws IOException {
+        Pair<Pair<ArrayList<int[]>, ArrayList<int[]>>, Pair<Vocab, Vocab>> pair =
+                streamNMT(numExamples, 2, new String[] {"<pad>", "<bos>", "<eos>"});
+        ArrayList<int[]> source = pair.getKey().getKey();
+        ArrayList<int[]> target = pair.getKey().getValue();
+        Vocab srcVocab = pair.getValue().getKey();
+        Vocab tgtVocab = pair.getValue().getValue();
 
         Pair<NDArray, NDArray> pairArr = buildArrayNMT(source, srcVocab, numSteps, manager);
         NDArray srcArr = pairArr.getKey();
@@ -143,12 +373,22 @@ public class NMT {
         NDArray tgtArr = pairArr.getKey();
         NDArray tgtValidLen = pairArr.getValue();
 
-        ArrayDataset dataset =
+        ArrayDataset.Builder builder =
                 new ArrayDataset.Builder()
                         .setData(srcArr, srcValidLen)
-                        .optLabels(tgtArr, tgtValidLen)
-                        .setSampling(batchSize, true)
-                        .build();
+                        .optLabels(tgtArr, tgtValidLen);
+        if (bucketWidth > 0 || maxTokens > 0) {
+            int[] lengths =
+                    srcValidLen.maximum(tgtValidLen).toType(DataType.INT32, false).toIntArray();
+            int width = bucketWidth > 0 ? bucketWidth : numSteps;
+            builder.setSampling(new BucketSampler(lengths, batchSize, width, maxTokens, true))
+                    .optPipeline(new Pipeline().add(0, new TrimPadding(srcVocab.getIdx("<pad>"))))
+                    .optTargetPipeline(
+                            new Pipeline().add(0, new TrimPadding(tgtVocab.getIdx("<pad>"))));
+        } else {
+            builder.setSampling(batchSize, true);
+        }
+        ArrayDataset dataset = builder.build();
 
         return new Pair<>(dataset, new Pair<>(srcVocab, tgtVocab));
     }
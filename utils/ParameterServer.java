@@ -0,0 +1,315 @@
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.ndarray.types.SparseFormat;
+import ai.djl.nn.core.Embedding;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-process parameter server for the table of an embedding, updated asynchronously by worker
+ * threads with sparse gradients.
+ *
+ * <p>A batch only reads the rows of the tokens it contains, so all the other rows of the gradient
+ * of an embedding are zero. Instead of keeping a copy of the table and exchanging dense gradients,
+ * every worker pulls the rows its batch needs, computes their gradients and pushes them back. The
+ * server applies each push as a sparse SGD update as soon as it gets it.
+ *
+ * <p>In the {@link Mode#HOGWILD} mode, the workers read and write the table without any locking, a
+ * row can be read while another worker updates it. This works well when the batches share few rows.
+ * In the {@link Mode#BOUNDED_STALENESS} mode, the rows are split in ranges, each with its own lock,
+ * so that the workers only wait for each other when they touch the same range. Every worker also
+ * counts its steps with {@link #clock(int)}, and a worker more than {@code staleness} steps ahead
+ * of the slowest one waits for it before pulling, so that it never sees updates older than that.
+ *
+ * <pre>{@code
+ * ParameterServer.Rows rows = server.pull(worker, tokens, manager);
+ * try (GradientCollector gc = Engine.getInstance().newGradientCollector()) {
+ *     NDArray X = rows.embed();
+ *     ...
+ *     gc.backward(l);
+ * }
+ * server.push(rows);
+ * server.clock(worker);
+ * }</pre>
+ *
+ * <p>A worker that has no more batches calls {@link #finish(int)}, the others then stop waiting for
+ * it.
+ */
+public class ParameterServer {
+
+    /** How the workers synchronize. */
+    public enum Mode {
+        HOGWILD,
+        BOUNDED_STALENESS
+    }
+
+    /** The rows of the table pulled by a worker for a batch. */
+    public static class Rows {
+
+        private int[] ids;
+        private NDArray values;
+        private NDArray indices;
+
+        Rows(int[] ids, NDArray values, NDArray indices) {
+            this.ids = ids;
+            this.values = values;
+            this.indices = indices;
+        }
+
+        /* The ids of the rows in the table, sorted, without duplicates */
+        public int[] getIds() {
+            return ids;
+        }
+
+        /* The rows, one per id, they get the gradient pushed to the server */
+        public NDArray getValues() {
+            return values;
+        }
+
+        /* The tokens of the batch as indices into `getValues` */
+        public NDArray getIndices() {
+            return indices;
+        }
+
+        /* The embeddings of the tokens of the batch, of their shape followed by the dimension */
+        public NDArray embed() {
+            return Embedding.embedding(indices, values, SparseFormat.DENSE).head();
+        }
+    }
+
+    private Mode mode;
+    private int numRows;
+    private int dim;
+    private float lr;
+    private int staleness;
+    private float[] table;
+    private int rowsPerStripe;
+    private ReentrantReadWriteLock[] locks;
+    private int[] clocks;
+    private boolean[] finished;
+    private AtomicLong rowsPushed = new AtomicLong();
+    private AtomicLong rowsPulled = new AtomicLong();
+
+    /**
+     * Constructor for ParameterServer.
+     *
+     * @param table the initial table, of shape (no. of rows, dimension)
+     * @param numWorkers the no. of worker threads
+     * @param lr the learning rate of the SGD updates
+     * @param mode how the workers synchronize
+     * @param staleness the no. of steps a worker can be ahead of the slowest one in the {@code
+     *     BOUNDED_STALENESS} mode
+     * @param numStripes the no. of ranges of rows with their own lock in the {@code
+     *     BOUNDED_STALENESS} mode
+     */
+    public ParameterServer(
+            NDArray table, int numWorkers, float lr, Mode mode, int staleness, int numStripes) {
+        this.mode = mode;
+        this.numRows = Math.toIntExact(table.getShape().get(0));
+        this.dim = Math.toIntExact(table.getShape().get(1));
+        this.lr = lr;
+        this.staleness = staleness;
+        this.table = table.toType(DataType.FLOAT32, false).toFloatArray();
+        clocks = new int[numWorkers];
+        finished = new boolean[numWorkers];
+        rowsPerStripe = (numRows + numStripes - 1) / numStripes;
+        locks = new ReentrantReadWriteLock[(numRows + rowsPerStripe - 1) / rowsPerStripe];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Pulls the rows of {@code tokens}. In the {@code BOUNDED_STALENESS} mode, waits first until
+     * the worker is no more than {@code staleness} steps ahead of the slowest one.
+     *
+     * @param worker the index of the worker
+     * @param tokens the token indices of the batch, of any shape
+     * @param manager the manager of the step of the worker
+     * @return the rows, that require gradient
+     */
+    public Rows pull(int worker, NDArray tokens, NDManager manager) {
+        int[] flat = tokens.toType(DataType.INT32, false).toIntArray();
+        // Position of each distinct token in the sorted ids
+        TreeMap<Integer, Integer> positions = new TreeMap<>();
+        for (int token : flat) {
+            positions.put(token, 0);
+        }
+        int[] ids = new int[positions.size()];
+        int k = 0;
+        for (Integer id : positions.keySet()) {
+            positions.put(id, k);
+            ids[k++] = id;
+        }
+        int[] indices = new int[flat.length];
+        for (int i = 0; i < flat.length; i++) {
+            indices[i] = positions.get(flat[i]);
+        }
+
+        NDArray values = manager.create(pull(worker, ids), new Shape(ids.length, dim));
+        values.setRequiresGradient(true);
+        return new Rows(ids, values, manager.create(indices, tokens.getShape()));
+    }
+
+    /**
+     * Pulls rows of the table.
+     *
+     * @param worker the index of the worker
+     * @param rowIds the ids of the rows
+     * @return the rows one after the other
+     */
+    public float[] pull(int worker, int[] rowIds) {
+        if (mode == Mode.BOUNDED_STALENESS) {
+            waitForSlowest(worker);
+        }
+        float[] rows = new float[rowIds.length * dim];
+        forEachStripe(
+                rowIds, false, i -> System.arraycopy(table, rowIds[i] * dim, rows, i * dim, dim));
+        rowsPulled.addAndGet(rowIds.length);
+        return rows;
+    }
+
+    /* Pushes the gradient of rows pulled by `pull` after backward */
+    public void push(Rows rows) {
+        NDArray gradient = rows.values.getGradient();
+        push(rows.ids, gradient.toFloatArray());
+        gradient.close();
+    }
+
+    /**
+     * Applies an SGD update to rows of the table.
+     *
+     * @param rowIds the ids of the rows, a row can appear several times
+     * @param gradRows the gradients of the rows one after the other
+     */
+    public void push(int[] rowIds, float[] gradRows) {
+        if (gradRows.length != rowIds.length * dim) {
+            throw new IllegalArgumentException(
+                    "Expected " + rowIds.length * dim + " gradient values, got " + gradRows.length);
+        }
+        forEachStripe(
+                rowIds,
+                true,
+                i -> {
+                    int offset = rowIds[i] * dim;
+                    for (int j = 0; j < dim; j++) {
+                        table[offset + j] -= lr * gradRows[i * dim + j];
+                    }
+                });
+        rowsPushed.addAndGet(rowIds.length);
+    }
+
+    /* Marks the end of a step of `worker` */
+    public synchronized void clock(int worker) {
+        clocks[worker]++;
+        notifyAll();
+    }
+
+    /**
+     * Marks the end of the work of {@code worker}. It is no longer counted as the slowest worker in
+     * the {@code BOUNDED_STALENESS} mode, and must not pull anymore.
+     *
+     * @param worker the index of the worker
+     */
+    public synchronized void finish(int worker) {
+        finished[worker] = true;
+        notifyAll();
+    }
+
+    /* A copy of the whole table, for evaluation */
+    public NDArray getTable(NDManager manager) {
+        float[] copy = new float[table.length];
+        for (ReentrantReadWriteLock lock : locks) {
+            lock.readLock().lock();
+        }
+        try {
+            System.arraycopy(table, 0, copy, 0, table.length);
+        } finally {
+            for (ReentrantReadWriteLock lock : locks) {
+                lock.readLock().unlock();
+            }
+        }
+        return manager.create(FloatBuffer.wrap(copy), new Shape(numRows, dim));
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /* The no. of rows pushed so far, a dense update would push all the rows every time */
+    public long getRowsPushed() {
+        return rowsPushed.get();
+    }
+
+    public long getRowsPulled() {
+        return rowsPulled.get();
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    private synchronized void waitForSlowest(int worker) {
+        if (finished[worker]) {
+            throw new IllegalStateException("Worker " + worker + " has finished");
+        }
+        while (clocks[worker] - slowestClock() > staleness) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /* The clock of the slowest worker that has not finished */
+    private int slowestClock() {
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < clocks.length; i++) {
+            if (!finished[i]) {
+                min = Math.min(min, clocks[i]);
+            }
+        }
+        return min;
+    }
+
+    /*
+     * Calls `action` on the index in `rowIds` of each row, holding the lock of its range in the
+     * BOUNDED_STALENESS mode. Only one lock is held at a time, so the workers cannot deadlock
+     */
+    private void forEachStripe(
+            int[] rowIds, boolean write, Functions.voidFunction<Integer> action) {
+        if (mode == Mode.HOGWILD) {
+            for (int i = 0; i < rowIds.length; i++) {
+                action.apply(i);
+            }
+            return;
+        }
+        Integer[] order = new Integer[rowIds.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(rowIds[a], rowIds[b]));
+        int i = 0;
+        while (i < order.length) {
+            int stripe = rowIds[order[i]] / rowsPerStripe;
+            Lock lock = write ? locks[stripe].writeLock() : locks[stripe].readLock();
+            lock.lock();
+            try {
+                for (; i < order.length && rowIds[order[i]] / rowsPerStripe == stripe; i++) {
+                    action.apply(order[i]);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
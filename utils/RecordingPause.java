@@ -0,0 +1,98 @@
+import ai.djl.ndarray.NDManager;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Pauses the autograd recording of the current thread until it is closed, so that the operations in
+ * between are not recorded even on arrays that require gradient.
+ *
+ * <p>{@code stopGradient} gives an array without gradient but MXNet still records the operations on
+ * it while a {@code GradientCollector} is open, which keeps their inputs alive until backward. DJL
+ * has no public API for the recording state, only {@code MxGradientCollector} of the MXNet engine
+ * exposes it. It is called by reflection, so this class neither depends on the MXNet engine nor
+ * loads it with other engines, for which nothing is paused and {@link #isSupported} is false.
+ *
+ * <pre>{@code
+ * try (RecordingPause pause = RecordingPause.pause(manager)) {
+ *     ...
+ * }
+ * }</pre>
+ */
+public final class RecordingPause implements AutoCloseable {
+
+    private boolean supported;
+    private boolean recording;
+    private boolean training;
+
+    private RecordingPause(NDManager manager) {
+        supported = isSupported(manager);
+        if (supported) {
+            recording = MxNet.invoke(MxNet.SET_RECORDING, false);
+            training = MxNet.invoke(MxNet.IS_TRAINING);
+        }
+    }
+
+    /* Pauses the recording until the returned pause is closed */
+    public static RecordingPause pause(NDManager manager) {
+        return new RecordingPause(manager);
+    }
+
+    /* Whether the engine of `manager` lets the recording be paused, only MXNet does */
+    public static boolean isSupported(NDManager manager) {
+        return "MXNet".equals(manager.getEngine().getEngineName());
+    }
+
+    /**
+     * Sets the training mode while paused. A {@code GradientCollector} turns the recording and the
+     * training mode on when opened and off when closed, and can only be opened when both are off.
+     *
+     * @param training whether the operations run in training mode, such as dropout
+     */
+    public void setTraining(boolean training) {
+        if (supported) {
+            MxNet.invoke(MxNet.SET_TRAINING, training);
+        }
+    }
+
+    /** Restores the recording and the training mode. */
+    @Override
+    public void close() {
+        if (supported) {
+            MxNet.invoke(MxNet.SET_TRAINING, training);
+            MxNet.invoke(MxNet.SET_RECORDING, recording);
+        }
+    }
+
+    /* The static methods of `MxGradientCollector`, only looked up once MXNet is in use */
+    private static final class MxNet {
+
+        static final Method SET_RECORDING = method("setRecording", boolean.class);
+        static final Method IS_TRAINING = method("isTraining");
+        static final Method SET_TRAINING = method("setTraining", boolean.class);
+
+        private static Method method(String name, Class<?>... parameterTypes) {
+            try {
+                return Class.forName("ai.djl.mxnet.engine.MxGradientCollector")
+                        .getMethod(name, parameterTypes);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("The MXNet engine has no " + name, e);
+            }
+        }
+
+        /* Returns the previous state for the setters, the current one for `isTraining` */
+        static boolean invoke(Method method, Object... args) {
+            try {
+                return (Boolean) method.invoke(null, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IllegalStateException(cause);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+import tech.tablesaw.api.FloatColumn;
+import tech.tablesaw.api.StringColumn;
+import tech.tablesaw.api.Table;
+import tech.tablesaw.plotly.api.LinePlot;
+import tech.tablesaw.plotly.components.Figure;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Animates a graph of metrics that are added at a high rate, for example once per iteration.
+ *
+ * <p>{@link Animator} keeps every point in a table and re-renders the whole plot on the training
+ * thread, which gets slower as the history grows. This animator keeps at most {@code maxPoints}
+ * points per metric in primitive arrays. When a metric is full, its history is downsampled to half
+ * of the points with the Largest-Triangle-Three-Buckets algorithm, so old points get coarser while
+ * the shape of the curve is kept. {@link #show} renders the plot at most {@code maxFps} times per
+ * second and returns right away otherwise, {@link #close} renders the last points.
+ *
+ * <p>The plot is rendered on the thread calling {@link #show}, not in the background: the display
+ * of the notebook is tied to the cell being executed, a background thread could not reach it
+ * reliably. So the training loop still waits for a frame to be rendered, but at most {@code maxFps}
+ * times per second however often it calls {@link #show}, and each frame has at most {@code
+ * maxPoints} points per metric.
+ */
+public class StreamingAnimator implements AutoCloseable {
+
+    private String id; // Id reference of graph(for updating graph)
+    private int maxPoints;
+    private Map<String, Series> series;
+    private long periodNanos;
+    private long lastRender;
+    private boolean dirty;
+
+    public StreamingAnimator() {
+        this(1000, 2);
+    }
+
+    /**
+     * Constructor for StreamingAnimator.
+     *
+     * @param maxPoints the maximum number of points kept for each metric, at least 6 so that half
+     *     of them still keeps the first and last points and one in between
+     * @param maxFps the maximum number of times the graph is rendered per second
+     */
+    public StreamingAnimator(int maxPoints, double maxFps) {
+        if (maxPoints < 6) {
+            throw new IllegalArgumentException("maxPoints must be at least 6");
+        }
+        this.id = "";
+        this.maxPoints = maxPoints;
+        this.series = new LinkedHashMap<>();
+        this.periodNanos = (long) (1e9 / maxFps);
+    }
+
+    // Add a single metric to the buffer
+    public void add(float epoch, float value, String metric) {
+        synchronized (series) {
+            series.computeIfAbsent(metric, k -> new Series(maxPoints)).add(epoch, value);
+            dirty = true;
+        }
+    }
+
+    // Add accuracy, train accuracy, and train loss metrics for a given epoch
+    // Then plot it on the graph
+    public void add(float epoch, float accuracy, float trainAcc, float trainLoss) {
+        add(epoch, trainLoss, "train loss");
+        add(epoch, trainAcc, "train accuracy");
+        add(epoch, accuracy, "test accuracy");
+        show();
+    }
+
+    // Display the graph, unless it was already rendered less than a frame ago
+    public synchronized void show() {
+        long now = System.nanoTime();
+        if (lastRender != 0 && now - lastRender < periodNanos) {
+            return;
+        }
+        lastRender = now;
+        render();
+    }
+
+    // Draw the points added since the last frame
+    @Override
+    public synchronized void close() {
+        render();
+    }
+
+    // Return the points currently kept, as a table with the same columns as `Animator`
+    public Table getData() {
+        float[] epochs;
+        float[] values;
+        String[] metrics;
+        synchronized (series) {
+            int total = 0;
+            for (Series s : series.values()) {
+                total += s.size;
+            }
+            epochs = new float[total];
+            values = new float[total];
+            metrics = new String[total];
+            int offset = 0;
+            for (Map.Entry<String, Series> entry : series.entrySet()) {
+                Series s = entry.getValue();
+                System.arraycopy(s.xs, 0, epochs, offset, s.size);
+                System.arraycopy(s.ys, 0, values, offset, s.size);
+                Arrays.fill(metrics, offset, offset + s.size, entry.getKey());
+                offset += s.size;
+            }
+        }
+        return Table.create("Data")
+                .addColumns(
+                        FloatColumn.create("epoch", epochs),
+                        FloatColumn.create("value", values),
+                        StringColumn.create("metric", metrics));
+    }
+
+    private void render() {
+        synchronized (series) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+        }
+        // A failing frame must not fail the training loop, the next one may succeed
+        try {
+            Figure figure = LinePlot.create("", getData(), "epoch", "value", "metric");
+            if (id.equals("")) {
+                id = display(figure);
+            } else {
+                updateDisplay(id, figure);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Failed to render the graph: " + e);
+        }
+    }
+
+    /* The points of one metric, downsampled when the buffer is full */
+    private static final class Series {
+
+        float[] xs;
+        float[] ys;
+        int size;
+
+        Series(int capacity) {
+            xs = new float[capacity];
+            ys = new float[capacity];
+        }
+
+        void add(float x, float y) {
+            if (size == xs.length) {
+                size = lttb(xs, ys, size, xs.length / 2);
+            }
+            xs[size] = x;
+            ys[size] = y;
+            size++;
+        }
+    }
+
+    /**
+     * Downsamples the first {@code size} points in place with Largest-Triangle-Three-Buckets.
+     *
+     * <p>The first and last points are kept, the others are split into {@code threshold - 2}
+     * buckets and from each bucket the point forming the largest triangle with the previously kept
+     * point and the average of the next bucket is kept.
+     *
+     * @return the number of points kept
+     */
+    public static int lttb(float[] xs, float[] ys, int size, int threshold) {
+        if (threshold >= size || threshold < 3) {
+            return size;
+        }
+        double every = (double) (size - 2) / (threshold - 2);
+        int a = 0; // Index of the previously kept point
+        float ax = xs[0];
+        float ay = ys[0];
+        int out = 1;
+        for (int i = 0; i < threshold - 2; i++) {
+            // Average of the next bucket
+            int avgStart = (int) Math.floor((i + 1) * every) + 1;
+            int avgEnd = Math.min((int) Math.floor((i + 2) * every) + 1, size);
+            double avgX = 0;
+            double avgY = 0;
+            for (int j = avgStart; j < avgEnd; j++) {
+                avgX += xs[j];
+                avgY += ys[j];
+            }
+            int avgLength = Math.max(1, avgEnd - avgStart);
+            avgX /= avgLength;
+            avgY /= avgLength;
+
+            // Point of the current bucket with the largest triangle
+            int rangeStart = (int) Math.floor(i * every) + 1;
+            int rangeEnd = (int) Math.floor((i + 1) * every) + 1;
+            double maxArea = -1;
+            for (int j = rangeStart; j < rangeEnd; j++) {
+                double area =
+                        Math.abs((ax - avgX) * (ys[j] - ay) - (ax - xs[j]) * (avgY - ay)) * 0.5;
+                if (area > maxArea) {
+                    maxArea = area;
+                    a = j;
+                }
+            }
+            ax = xs[a];
+            ay = ys[a];
+            xs[out] = ax;
+            ys[out] = ay;
+            out++;
+        }
+        xs[out] = xs[size - 1];
+        ys[out] = ys[size - 1];
+        return out + 1;
+    }
+}
@@ -14,7 +14,9 @@ public class TrainingChapter9 {
             params.add(pair.getValue().getArray());
         }
         for (NDArray p : params) {
-            NDArray gradient = p.getGradient().stopGradient();
+            // `getGradient` returns a new handle every time, attach it to `manager` so that it is
+            // released together with the other arrays of this step
+            NDArray gradient = p.getGradient();
             gradient.attach(manager);
             result += gradient.pow(2).sum().getFloat();
         }
@@ -22,6 +24,7 @@ public class TrainingChapter9 {
         if (norm > theta) {
             for (NDArray param : params) {
                 NDArray gradient = param.getGradient();
+                gradient.attach(manager);
                 gradient.muli(theta / norm);
             }
         }
@@ -0,0 +1,173 @@
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+
+import java.util.Arrays;
+
+/**
+ * Records where a training step spends its wall time, phase by phase.
+ *
+ * <p>The phases of a step are timed back to back: each call to {@link #stop} charges the time since
+ * the previous call to the given phase. The profiler is off by default and every hook returns
+ * immediately in that case, so the training loops can call it unconditionally.
+ *
+ * <p>Most engines run operators asynchronously, so without synchronization the time of a phase is
+ * charged to whichever later phase first reads a result. With {@code sync} enabled, the array
+ * produced by a phase is read back to the host before the clock is stopped. The phases that write
+ * arrays in place instead, such as backward and gradient clipping for the gradients and the updater
+ * for the parameters, read back what they wrote with {@link #stopInPlace} and {@link
+ * #stopGradients}.
+ */
+public class TrainingProfiler {
+
+    public static final int DATA = 0;
+    public static final int TO_DEVICE = 1;
+    public static final int FORWARD = 2;
+    public static final int LOSS = 3;
+    public static final int BACKWARD = 4;
+    public static final int GRAD_CLIPPING = 5;
+    public static final int UPDATER = 6;
+    public static final int METRIC = 7;
+
+    public static final String[] PHASES = {
+        "data", "toDevice", "forward", "loss", "backward", "gradClipping", "updater", "metric"
+    };
+
+    private static boolean enabled;
+    private static boolean sync;
+    private static boolean trackMemory;
+
+    private static long[] nanos = new long[PHASES.length];
+    private static long[] calls = new long[PHASES.length];
+    private static long[] bytes = new long[PHASES.length];
+    private static long tik;
+    private static long lastBytes;
+
+    private TrainingProfiler() {}
+
+    /**
+     * Turns the profiler on.
+     *
+     * @param syncPerPhase read the result of each phase back to the host before stopping its clock
+     * @param recordMemory record the change in native memory held by the manager during each phase
+     */
+    public static void enable(boolean syncPerPhase, boolean recordMemory) {
+        enabled = true;
+        sync = syncPerPhase;
+        trackMemory = recordMemory;
+        reset();
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /* Starts the clock for the first phase of a step */
+    public static void start(NDManager manager) {
+        if (!enabled) {
+            return;
+        }
+        if (trackMemory) {
+            lastBytes = nativeBytes(manager);
+        }
+        tik = System.nanoTime();
+    }
+
+    /* Charges the time since the last call to `phase` and starts the clock for the next one */
+    public static void stop(int phase, NDManager manager, NDArray result) {
+        if (!enabled) {
+            return;
+        }
+        if (sync && result != null) {
+            result.toByteBuffer();
+        }
+        nanos[phase] += System.nanoTime() - tik;
+        calls[phase]++;
+        if (trackMemory) {
+            long current = nativeBytes(manager);
+            bytes[phase] += current - lastBytes;
+            lastBytes = current;
+        }
+        // Restart after the memory walk so that it is not charged to the next phase
+        tik = System.nanoTime();
+    }
+
+    /* Like `stop`, for a phase that writes `written` in place, they are read back with sync */
+    public static void stopInPlace(int phase, NDManager manager, NDList written) {
+        if (!enabled) {
+            return;
+        }
+        if (sync) {
+            for (NDArray array : written) {
+                array.toByteBuffer();
+            }
+        }
+        stop(phase, manager, null);
+    }
+
+    /* Like `stop`, for a phase that writes the gradients of `params`, read back with sync */
+    public static void stopGradients(int phase, NDManager manager, NDList params) {
+        if (!enabled) {
+            return;
+        }
+        if (sync) {
+            for (NDArray param : params) {
+                // Some engines return a new handle for each call
+                try (NDArray gradient = param.getGradient()) {
+                    gradient.toByteBuffer();
+                }
+            }
+        }
+        stop(phase, manager, null);
+    }
+
+    /* Prints the breakdown of the phases recorded since the last report, then clears it */
+    public static void report(int epoch) {
+        if (!enabled) {
+            return;
+        }
+        long total = Arrays.stream(nanos).sum();
+        System.out.format("epoch %d step breakdown:%n", epoch);
+        System.out.format(
+                "%-14s %12s %10s %8s %14s%n",
+                "phase", "total (ms)", "avg (ms)", "share", "memory (KB)");
+        for (int i = 0; i < PHASES.length; i++) {
+            if (calls[i] == 0) {
+                continue;
+            }
+            System.out.format(
+                    "%-14s %12.2f %10.3f %7.1f%% %14s%n",
+                    PHASES[i],
+                    nanos[i] / 1E6,
+                    nanos[i] / 1E6 / calls[i],
+                    total == 0 ? 0.0 : 100.0 * nanos[i] / total,
+                    trackMemory ? String.format("%+.1f", bytes[i] / 1024.0) : "-");
+        }
+        reset();
+    }
+
+    public static double getTotalMillis(int phase) {
+        return nanos[phase] / 1E6;
+    }
+
+    public static void reset() {
+        Arrays.fill(nanos, 0);
+        Arrays.fill(calls, 0);
+        Arrays.fill(bytes, 0);
+    }
+
+    /* Sum of the sizes of all the arrays held by `manager` and its sub managers */
+    public static long nativeBytes(NDManager manager) {
+        long sum = 0;
+        for (NDArray array : manager.getManagedArrays()) {
+            if (!array.isReleased()) {
+                sum += array.size() * array.getDataType().getNumOfBytes();
+            }
+        }
+        return sum;
+    }
+}
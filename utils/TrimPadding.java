@@ -0,0 +1,33 @@
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.translate.Transform;
+
+/**
+ * Removes the trailing columns of a batch of token ids that only hold padding.
+ *
+ * <p>The sequences of the batch are padded at the end, so the batch is cut to the length of its
+ * longest sequence. {@code ArrayDataset} applies its pipelines to whole batches, so adding this
+ * transform to them makes every batch only as wide as it needs to be.
+ */
+public class TrimPadding implements Transform {
+
+    private int paddingToken;
+
+    public TrimPadding(int paddingToken) {
+        this.paddingToken = paddingToken;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public NDArray transform(NDArray array) {
+        if (array.getShape().dimension() != 2) {
+            return array;
+        }
+        // Number of columns holding at least one token that is not padding
+        long length = array.neq(paddingToken).sum(new int[] {0}).gt(0).sum().getLong();
+        if (length == array.getShape().get(1)) {
+            return array;
+        }
+        return array.get(new NDIndex(":, :{}", Math.max(length, 1)));
+    }
+}
@@ -0,0 +1,143 @@
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.AbstractBlock;
+import ai.djl.nn.core.Linear;
+import ai.djl.nn.norm.Dropout;
+import ai.djl.training.ParameterStore;
+import ai.djl.util.PairList;
+
+/* Additive attention. */
+public class AdditiveAttention extends AbstractBlock {
+
+    private Linear W_k;
+    private Linear W_q;
+    private Linear W_v;
+    private Dropout dropout;
+    public NDArray attentionWeights;
+    private int chunkSize;
+
+    public AdditiveAttention(int numHiddens, float dropout) {
+        this(numHiddens, dropout, 0);
+    }
+
+    /**
+     * Constructor for AdditiveAttention.
+     *
+     * <p>The features of every query and key pair, of shape (`batchSize`, no. of queries, no. of
+     * key-value pairs, `numHiddens`), are only needed until {@code W_v} reduces them to a score.
+     * With a positive {@code chunkSize}, the keys are processed in blocks of {@code chunkSize} and
+     * the features of a block are released as soon as its scores are computed, so at most
+     * (`batchSize`, no. of queries, {@code chunkSize}, `numHiddens`) features are held at a time.
+     * The keys past the longest valid length are skipped, the softmax masks them anyway.
+     *
+     * @param numHiddens the number of hidden units of the features
+     * @param dropout the dropout rate of the attention weights
+     * @param chunkSize the number of keys per block, or 0 to compute all the features at once
+     */
+    public AdditiveAttention(int numHiddens, float dropout, int chunkSize) {
+        W_k = Linear.builder().setUnits(numHiddens).optBias(false).build();
+        addChildBlock("W_k", W_k);
+
+        W_q = Linear.builder().setUnits(numHiddens).optBias(false).build();
+        addChildBlock("W_q", W_q);
+
+        W_v = Linear.builder().setUnits(1).optBias(false).build();
+        addChildBlock("W_v", W_v);
+
+        this.dropout = Dropout.builder().optRate(dropout).build();
+        addChildBlock("dropout", this.dropout);
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    protected NDList forwardInternal(
+            ParameterStore ps, NDList inputs, boolean training, PairList<String, Object> params) {
+        // Shape of the output `queries` and `attentionWeights`:
+        // (no. of queries, no. of key-value pairs)
+        NDArray queries = inputs.get(0);
+        NDArray keys = inputs.get(1);
+        NDArray values = inputs.get(2);
+        NDArray validLens = inputs.get(3);
+
+        queries = W_q.forward(ps, new NDList(queries), training, params).head();
+        keys = W_k.forward(ps, new NDList(keys), training, params).head();
+        NDManager manager = queries.getManager();
+        long numKeys = keys.getShape().get(1);
+        long numScored = numKeys;
+        long blockSize = numKeys;
+        if (chunkSize > 0) {
+            blockSize = chunkSize;
+            if (validLens != null) {
+                long maxLen = validLens.max().toType(DataType.INT64, false).getLong();
+                numScored = Math.max(1, Math.min(numKeys, maxLen));
+            }
+        }
+
+        // After dimension expansion, shape of `queries`: (`batchSize`, no. of
+        // queries, 1, `numHiddens`) and shape of `keys`: (`batchSize`, 1,
+        // no. of key-value pairs, `numHiddens`). Sum them up with
+        // broadcasting, one block of keys at a time
+        NDList expanded = new NDList(queries.expandDims(2), keys.expandDims(1));
+        NDList blocks = new NDList();
+        for (long start = 0; start < numScored; start += blockSize) {
+            long end = Math.min(start + blockSize, numScored);
+            // The features of a block are released once they are reduced to scores
+            try (NDManager sub = manager.newSubManager()) {
+                expanded.tempAttach(sub);
+                NDArray features =
+                        expanded.get(0)
+                                .add(expanded.get(1).get(new NDIndex(":, :, {}:{}", start, end)))
+                                .tanh();
+                // There is only one output of `this.W_v`, so we remove the last
+                // one-dimensional entry from the shape. Shape of `scores`:
+                // (`batchSize`, no. of queries, no. of keys in the block)
+                NDArray result = W_v.forward(ps, new NDList(features), training, params).head();
+                NDArray scores = result.squeeze(-1);
+                scores.attach(manager);
+                blocks.add(scores);
+            }
+        }
+        if (numScored < numKeys) {
+            // Scores of the skipped keys, masked by the softmax
+            Shape shape = blocks.head().getShape();
+            blocks.add(
+                    manager.zeros(
+                            new Shape(shape.get(0), shape.get(1), numKeys - numScored),
+                            blocks.head().getDataType()));
+        }
+        NDArray scores = blocks.size() == 1 ? blocks.head() : NDArrays.concat(blocks, -1);
+        attentionWeights = Chap10Utils.maskedSoftmax(scores, validLens);
+        expanded.close();
+        if (blocks.size() > 1) {
+            blocks.close();
+        }
+        // Shape of `values`: (`batchSize`, no. of key-value pairs, value dimension)
+        NDList list = dropout.forward(ps, new NDList(attentionWeights), training, params);
+        return new NDList(list.head().batchDot(values));
+    }
+
+    @Override
+    public Shape[] getOutputShapes(Shape[] inputShapes) {
+        throw new UnsupportedOperationException("Not implemented");
+    }
+
+    @Override
+    public void initializeChildBlocks(NDManager manager, DataType dataType, Shape... inputShapes) {
+        W_q.initialize(manager, dataType, inputShapes[0]);
+        W_k.initialize(manager, dataType, inputShapes[1]);
+        long[] q = W_q.getOutputShapes(new Shape[] {inputShapes[0]})[0].getShape();
+        long[] k = W_k.getOutputShapes(new Shape[] {inputShapes[1]})[0].getShape();
+        long w = Math.max(q[q.length - 2], k[k.length - 2]);
+        long h = Math.max(q[q.length - 1], k[k.length - 1]);
+        long[] shape = new long[] {2, 1, w, h};
+        W_v.initialize(manager, dataType, new Shape(shape));
+        long[] dropoutShape = new long[shape.length - 1];
+        System.arraycopy(shape, 0, dropoutShape, 0, dropoutShape.length);
+        dropout.initialize(manager, dataType, new Shape(dropoutShape));
+    }
+}
@@ -1,29 +1,85 @@
 import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
+import ai.djl.util.PairList;
 
 public class Chap10Utils {
 
+    /**
+     * Performs the softmax operation on the last axis of {@code X}, only over the first elements
+     * given by {@code validLens}. The masked elements get a weight of 0, but a row without any
+     * valid element, of length 0, gets uniform weights over all the elements as every one of them
+     * is masked. {@code DotProductAttention} gives such rows the same weights on all its paths.
+     *
+     * @param X the scores, a 3D tensor
+     * @param validLens the no. of valid elements of each row, a 1D tensor with one length for each
+     *     batch or a 2D tensor with one length for each row, or null for no masking
+     * @return the weights, of the shape of {@code X}
+     */
     public static NDArray maskedSoftmax(NDArray X, NDArray validLens) {
-        /* Perform softmax operation by masking elements on the last axis. */
-        // `X`: 3D tensor, `validLens`: 1D or 2D tensor
         if (validLens == null) {
             return X.softmax(-1);
         }
 
+        Shape shape = X.getShape();
+        NDManager manager = X.getManager();
+        if ("MXNet".equals(manager.getEngine().getEngineName())) {
+            // The softmax operator of MXNet masks the elements past `length` itself, so neither
+            // the mask nor the masked scores are materialized
+            if (validLens.getShape().dimension() == 1) {
+                // One length per batch, broadcast to all the queries
+                validLens =
+                        validLens.reshape(shape.get(0), 1).broadcast(shape.get(0), shape.get(1));
+            }
+            PairList<String, Object> params = new PairList<>();
+            params.add("axis", -1);
+            params.add("use_length", true);
+            if (validLens.getDataType() != DataType.INT32) {
+                validLens = validLens.toType(DataType.INT32, false);
+            }
+            NDList inputs = new NDList(X, validLens);
+            NDArray weights = manager.invoke("softmax", inputs, params).head();
+            // The fused softmax gives rows of length 0 all-zero weights rather than uniform ones,
+            // they are rare so the lengths are checked before fixing the weights
+            NDArray empty = validLens.eq(0);
+            if (empty.any().getBoolean()) {
+                long numKeys = shape.get(shape.dimension() - 1);
+                NDArray uniform = empty.toType(X.getDataType(), false).div(numKeys).expandDims(-1);
+                weights = weights.add(uniform);
+            }
+            return weights;
+        }
+        return maskedSoftmaxGeneric(X, validLens);
+    }
+
+    /* `maskedSoftmax` with the operators of every engine */
+    static NDArray maskedSoftmaxGeneric(NDArray X, NDArray validLens) {
         Shape shape = X.getShape();
         if (validLens.getShape().dimension() == 1) {
             validLens = validLens.repeat(shape.get(1));
         } else {
             validLens = validLens.reshape(-1);
         }
-        // On the last axis, replace masked elements with a very large negative
-        // value, whose exponentiation outputs 0
+        // On the last axis, replace masked elements with the lowest value of the type, whose
+        // exponentiation outputs 0
         X =
                 X.reshape(new Shape(-1, shape.get(shape.dimension() - 1)))
-                        .sequenceMask(validLens, (float) -1E6);
+                        .sequenceMask(validLens, lowest(X.getDataType()));
         return X.softmax(-1).reshape(shape);
     }
 
+    /* A negative value close to the lowest one of the type, so that it does not overflow to -inf */
+    public static float lowest(DataType dataType) {
+        switch (dataType) {
+            case FLOAT16:
+                return -65504f;
+            default:
+                return -1E38f;
+        }
+    }
+
     public static NDArray transposeQkv(NDArray X, int numHeads) {
         // Shape of input `X`:
         // (`batchSize`, no. of queries or key-value pairs, `numHiddens`).
@@ -1,6 +1,8 @@
 import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
 import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
 import ai.djl.nn.AbstractBlock;
@@ -11,15 +13,76 @@ import ai.djl.util.PairList;
 /* Scaled dot product attention. */
 public class DotProductAttention extends AbstractBlock {
 
+    /*
+     * The scores are divided by sqrt(2) as in the original implementation, not by the square root
+     * of the dimension of the queries. `MultiHeadAttention` rescales the scores of the fused MXNet
+     * operator to it
+     */
+    static final double SCORE_DIVISOR = Math.sqrt(2);
+
     private Dropout dropout;
     public NDArray attentionWeights;
     private Shape[] outputShapes;
+    private int chunkSize;
+    private int window = -1;
+    private int numGlobal;
 
     public DotProductAttention(float dropout) {
         this.dropout = Dropout.builder().optRate(dropout).build();
         this.addChildBlock("dropout", this.dropout);
     }
 
+    /**
+     * Creates a DotProductAttention that processes the keys in blocks.
+     *
+     * <p>With a positive {@code chunkSize}, the keys are processed in blocks of {@code chunkSize}
+     * with an online softmax: a running maximum and sum of the exponentiated scores rescale the
+     * output accumulated so far, so only the scores of one block are held in memory at a time
+     * instead of the (`batchSize`, no. of queries, no. of key-value pairs) matrix. The attention
+     * weights are then not kept, {@link #attentionWeights} stays null. Use a {@code chunkSize} of 0
+     * to keep them.
+     *
+     * @param dropout the dropout rate of the attention weights
+     * @param chunkSize the number of keys per block, or 0 to compute all the scores at once
+     * @return the attention
+     */
+    public static DotProductAttention chunked(float dropout, int chunkSize) {
+        DotProductAttention attention = new DotProductAttention(dropout);
+        attention.chunkSize = chunkSize;
+        return attention;
+    }
+
+    /**
+     * Creates a local DotProductAttention.
+     *
+     * <p>Each query only attends to the keys at most {@code window} positions away from it, and to
+     * the first {@code numGlobal} keys. The first {@code numGlobal} queries still attend to all the
+     * keys. The queries and keys are split in blocks of {@code window} positions and each block of
+     * queries is scored against its own block of keys and the two blocks next to it, so the scores
+     * take O(no. of queries * {@code window}) instead of O(no. of queries^2). The keys outside of
+     * the window or past the valid length are masked like in {@link Chap10Utils#maskedSoftmax}. The
+     * queries and the keys must be the same sequence, for self-attention. The attention weights are
+     * not kept, {@link #attentionWeights} stays null.
+     *
+     * @param dropout the dropout rate of the attention weights
+     * @param window the number of keys attended to on each side of a query
+     * @param numGlobal the number of tokens at the start that attend and are attended to globally
+     * @return the attention
+     */
+    public static DotProductAttention local(float dropout, int window, int numGlobal) {
+        if (window < 0 || numGlobal < 0) {
+            throw new IllegalArgumentException("window and numGlobal must not be negative");
+        }
+        DotProductAttention attention = new DotProductAttention(dropout);
+        attention.window = window;
+        attention.numGlobal = numGlobal;
+        return attention;
+    }
+
+    public boolean isLocal() {
+        return window >= 0;
+    }
+
     @Override
     protected NDList forwardInternal(
             ParameterStore ps, NDList inputs, boolean training, PairList<String, Object> params) {
@@ -32,14 +95,320 @@ public class DotProductAttention extends AbstractBlock {
         NDArray keys = inputs.get(1);
         NDArray values = inputs.get(2);
         NDArray validLens = inputs.get(3);
+        if (window >= 0 && window < keys.getShape().get(1) - 1) {
+            attentionWeights = null;
+            return new NDList(forwardLocal(ps, queries, keys, values, validLens, training, params));
+        }
+        if (chunkSize > 0) {
+            attentionWeights = null;
+            return new NDList(
+                    forwardChunked(ps, queries, keys, values, validLens, training, params));
+        }
 
         // Swap the last two dimensions of `keys` and perform batchDot
-        NDArray scores = queries.batchDot(keys.swapAxes(1, 2)).div(Math.sqrt(2));
+        NDArray scores = queries.batchDot(keys.swapAxes(1, 2)).div(SCORE_DIVISOR);
         attentionWeights = Chap10Utils.maskedSoftmax(scores, validLens);
         NDList result = dropout.forward(ps, new NDList(attentionWeights), training, params);
         return new NDList(result.get(0).batchDot(values));
     }
 
+    private NDArray forwardChunked(
+            ParameterStore ps,
+            NDArray queries,
+            NDArray keys,
+            NDArray values,
+            NDArray validLens,
+            boolean training,
+            PairList<String, Object> params) {
+        NDManager manager = queries.getManager();
+        DataType dataType = queries.getDataType();
+        long numKeys = keys.getShape().get(1);
+        NDList inputs = new NDList(queries.div(SCORE_DIVISOR), keys, values);
+        if (validLens != null) {
+            // The keys past the longest valid length are masked for every query, skip them. A
+            // query of length 0 gets uniform weights over all the keys, none are skipped then
+            if (!validLens.eq(0).any().getBoolean()) {
+                long maxLen = validLens.max().toType(DataType.INT64, false).getLong();
+                numKeys = Math.min(numKeys, maxLen);
+            }
+            // Shape of the lengths: (`batchSize`, 1 or no. of queries, 1)
+            NDArray lens = validLens.toType(DataType.FLOAT32, false);
+            lens = lens.getShape().dimension() == 1 ? lens.reshape(-1, 1, 1) : lens.expandDims(-1);
+            inputs.add(lens);
+        }
+        // Running maximum and sum of the exponentiated scores of each query, and the output
+        // weighted by the exponentiated scores
+        NDArray max = null;
+        NDArray sum = null;
+        NDArray output = null;
+        for (long start = 0; start < numKeys; start += chunkSize) {
+            long end = Math.min(start + chunkSize, numKeys);
+            // The arrays of a block are released once the running values are updated
+            try (NDManager sub = manager.newSubManager()) {
+                tempAttach(inputs, sub);
+                NDIndex block = new NDIndex(":, {}:{}", start, end);
+                // Shape of `scores`: (`batchSize`, no. of queries, no. of keys in the block)
+                NDArray scores = inputs.get(0).batchDot(inputs.get(1).get(block).swapAxes(1, 2));
+                if (validLens != null) {
+                    NDArray positions =
+                            sub.arange((float) start, (float) end).reshape(1, 1, end - start);
+                    NDArray masked = positions.gte(inputs.get(3)).toType(dataType, false);
+                    scores = mask(scores, masked);
+                }
+                NDArray blockMax = scores.max(new int[] {-1}, true);
+                NDArray newMax = max == null ? blockMax : NDArrays.maximum(max, blockMax);
+                NDArray exp = scores.sub(newMax).exp();
+                NDArray weighted =
+                        dropout.forward(ps, new NDList(exp), training, params)
+                                .get(0)
+                                .batchDot(inputs.get(2).get(block));
+                NDArray blockSum = exp.sum(new int[] {-1}, true);
+                if (max == null) {
+                    sum = blockSum;
+                    output = weighted;
+                } else {
+                    // Rescale what was accumulated with the previous maximum
+                    max.attach(sub);
+                    sum.attach(sub);
+                    output.attach(sub);
+                    NDArray correction = max.sub(newMax).exp();
+                    sum = sum.mul(correction).add(blockSum);
+                    output = output.mul(correction).add(weighted);
+                }
+                max = newMax;
+                max.attach(manager);
+                sum.attach(manager);
+                output.attach(manager);
+            }
+        }
+        NDArray result = output.div(sum);
+        max.close();
+        sum.close();
+        output.close();
+        // The scaled queries and the reshaped lengths
+        inputs.get(0).close();
+        if (validLens != null) {
+            inputs.get(3).close();
+        }
+        return result;
+    }
+
+    private NDArray forwardLocal(
+            ParameterStore ps,
+            NDArray queries,
+            NDArray keys,
+            NDArray values,
+            NDArray validLens,
+            boolean training,
+            PairList<String, Object> params) {
+        NDManager manager = queries.getManager();
+        DataType dataType = queries.getDataType();
+        long batchSize = queries.getShape().get(0);
+        long numSteps = queries.getShape().get(1);
+        if (keys.getShape().get(1) != numSteps) {
+            throw new IllegalArgumentException("Local attention requires as many keys as queries");
+        }
+        int block = Math.max(window, 1);
+        long numBlocks = (numSteps + block - 1) / block;
+        long padded = numBlocks * block;
+        int global = (int) Math.min(numGlobal, numSteps);
+
+        // Position of the keys scored by each block of queries: the previous, the current and
+        // the next block. A key is masked when it is out of the window of the query, out of the
+        // sequence, or one of the global keys which are scored separately
+        float[] keyPositions = new float[Math.toIntExact(numBlocks * 3 * block)];
+        float[] outOfWindow = new float[Math.toIntExact(padded * 3 * block)];
+        for (int b = 0; b < numBlocks; b++) {
+            for (int c = 0; c < 3 * block; c++) {
+                long key = (long) (b - 1) * block + c;
+                keyPositions[b * 3 * block + c] = key;
+                for (int a = 0; a < block; a++) {
+                    long query = (long) b * block + a;
+                    boolean masked =
+                            Math.abs(key - query) > window || key < global || key >= numSteps;
+                    outOfWindow[(b * block + a) * 3 * block + c] = masked ? 1 : 0;
+                }
+            }
+        }
+
+        NDArray result;
+        try (NDManager sub = manager.newSubManager()) {
+            NDList inputs = new NDList(queries, keys, values);
+            if (validLens != null) {
+                inputs.add(validLens);
+            }
+            tempAttach(inputs, sub);
+            NDArray scaled = pad(queries.div(SCORE_DIVISOR), 0, padded - numSteps);
+            // Shape of `keyWindows` and `valueWindows`: (`batchSize` * no. of blocks, 3 *
+            // `block`, `d`)
+            NDArray keyWindows = windows(keys, block, numBlocks);
+            NDArray valueWindows = windows(values, block, numBlocks);
+            // Shape of `scores`: (`batchSize` * no. of blocks, `block`, 3 * `block`)
+            NDArray scores =
+                    scaled.reshape(batchSize * numBlocks, block, -1)
+                            .batchDot(keyWindows.swapAxes(1, 2));
+            NDArray masked = sub.create(outOfWindow, new Shape(1, numBlocks, block, 3 * block));
+            NDArray lens = null;
+            // 1 for the queries with valid keys, when some have none
+            NDArray nonEmpty = null;
+            if (validLens != null) {
+                lens = validLens.toType(DataType.FLOAT32, false);
+                if (lens.getShape().dimension() == 1) {
+                    lens = lens.reshape(batchSize, 1, 1, 1);
+                } else {
+                    // The padded queries are dropped in the end, any length does
+                    lens = pad(lens.expandDims(-1), 0, padded - numSteps);
+                    lens = lens.reshape(batchSize, numBlocks, block, 1);
+                }
+                NDArray positions = sub.create(keyPositions, new Shape(1, numBlocks, 1, 3 * block));
+                NDArray pastLen = positions.gte(lens).toType(DataType.FLOAT32, false);
+                if (validLens.eq(0).any().getBoolean()) {
+                    // A query of length 0 gets uniform weights over the keys it sees, as
+                    // `Chap10Utils.maskedSoftmax` gives it over all the keys: none of them is
+                    // past its length and its scores are set to 0
+                    nonEmpty = lens.gt(0).toType(DataType.FLOAT32, false);
+                    pastLen = pastLen.mul(nonEmpty);
+                }
+                masked = masked.add(pastLen).gt(0);
+            } else {
+                masked = masked.broadcast(batchSize, numBlocks, block, 3 * block);
+            }
+            masked = masked.toType(dataType, false).reshape(batchSize * numBlocks, block, -1);
+
+            if (global > 0) {
+                // Every query is also scored against the global keys
+                // Shape of `globalScores`: (`batchSize` * no. of blocks, `block`, `global`)
+                NDIndex first = new NDIndex(":, :{}", global);
+                NDArray globalScores =
+                        scaled.batchDot(keys.get(first).swapAxes(1, 2))
+                                .reshape(batchSize * numBlocks, block, global);
+                NDArray globalMasked = sub.zeros(new Shape(1, 1, global), dataType);
+                if (lens != null) {
+                    NDArray positions = sub.arange(0f, global).reshape(1, 1, global);
+                    globalMasked = positions.gte(lens.reshape(batchSize, -1, 1));
+                    if (nonEmpty != null) {
+                        globalMasked =
+                                globalMasked
+                                        .toType(DataType.FLOAT32, false)
+                                        .mul(nonEmpty.reshape(batchSize, -1, 1));
+                    }
+                }
+                globalMasked =
+                        globalMasked
+                                .toType(dataType, false)
+                                .broadcast(batchSize, padded, global)
+                                .reshape(batchSize * numBlocks, block, global);
+                scores = scores.concat(globalScores, -1);
+                masked = masked.concat(globalMasked, -1);
+            }
+
+            if (nonEmpty != null) {
+                scores =
+                        scores.mul(
+                                nonEmpty.toType(dataType, false)
+                                        .broadcast(batchSize, numBlocks, block, 1)
+                                        .reshape(batchSize * numBlocks, block, 1));
+            }
+            // Queries without any key left get all-zero weights
+            NDArray anyKey = masked.min(new int[] {-1}, true).eq(0).toType(dataType, false);
+            NDArray weights = mask(scores, masked).softmax(-1).mul(anyKey);
+            weights = dropout.forward(ps, new NDList(weights), training, params).get(0);
+            NDArray output =
+                    weights.get(new NDIndex(":, :, :{}", 3 * block)).batchDot(valueWindows);
+            output = output.reshape(batchSize, padded, -1);
+            if (global > 0) {
+                NDIndex first = new NDIndex(":, :{}", global);
+                NDArray globalWeights =
+                        weights.get(new NDIndex(":, :, {}:", 3 * block))
+                                .reshape(batchSize, padded, global);
+                output = output.add(globalWeights.batchDot(values.get(first)));
+
+                // The global queries attend to all the keys
+                NDArray globalLens = validLens;
+                if (validLens != null && validLens.getShape().dimension() == 2) {
+                    globalLens = validLens.get(first);
+                }
+                NDArray globalScores =
+                        queries.get(first).div(SCORE_DIVISOR).batchDot(keys.swapAxes(1, 2));
+                NDArray globalOutput =
+                        dropout.forward(
+                                        ps,
+                                        new NDList(
+                                                Chap10Utils.maskedSoftmax(
+                                                        globalScores, globalLens)),
+                                        training,
+                                        params)
+                                .get(0)
+                                .batchDot(values);
+                output =
+                        globalOutput.concat(
+                                output.get(new NDIndex(":, {}:{}", global, numSteps)), 1);
+            } else {
+                output = output.get(new NDIndex(":, :{}", numSteps));
+            }
+            result = output;
+            result.attach(manager);
+        }
+        return result;
+    }
+
+    /*
+     * Replaces the scores where `masked` is 1 with the lowest value of the type. Adding that value
+     * instead would overflow to -inf in float16, and a row of -inf gives NaN weights
+     */
+    private static NDArray mask(NDArray scores, NDArray masked) {
+        float lowest = Chap10Utils.lowest(scores.getDataType());
+        return scores.mul(masked.neg().add(1)).add(masked.mul(lowest));
+    }
+
+    /*
+     * Temporarily attaches each array of `arrays` once to `manager`. An array attached twice, like
+     * the keys also passed as the values, would be returned to `manager` when it is closed
+     */
+    private static void tempAttach(NDList arrays, NDManager manager) {
+        NDList distinct = new NDList();
+        for (NDArray array : arrays) {
+            if (array != null && distinct.stream().noneMatch(a -> a == array)) {
+                distinct.add(array);
+            }
+        }
+        distinct.tempAttach(manager);
+    }
+
+    /* Pads `X` with zeros on the second axis */
+    private static NDArray pad(NDArray X, long before, long after) {
+        NDManager manager = X.getManager();
+        Shape shape = X.getShape();
+        NDList parts = new NDList();
+        if (before > 0) {
+            parts.add(
+                    manager.zeros(
+                            shape.slice(0, 1).add(before).addAll(shape.slice(2)), X.getDataType()));
+        }
+        parts.add(X);
+        if (after > 0) {
+            parts.add(
+                    manager.zeros(
+                            shape.slice(0, 1).add(after).addAll(shape.slice(2)), X.getDataType()));
+        }
+        return parts.size() == 1 ? X : NDArrays.concat(parts, 1);
+    }
+
+    /* The previous, current and next block of each block of `X`, side by side */
+    private static NDArray windows(NDArray X, int block, long numBlocks) {
+        long batchSize = X.getShape().get(0);
+        long numSteps = X.getShape().get(1);
+        // Shape of `blocks`: (`batchSize`, no. of blocks + 2, `block`, `d`)
+        NDArray blocks =
+                pad(X, block, numBlocks * block - numSteps + block)
+                        .reshape(batchSize, numBlocks + 2, block, -1);
+        NDList shifted = new NDList();
+        for (int i = 0; i < 3; i++) {
+            shifted.add(blocks.get(new NDIndex(":, {}:{}", i, numBlocks + i)));
+        }
+        return NDArrays.concat(shifted, 2).reshape(batchSize * numBlocks, 3 * block, -1);
+    }
+
     @Override
     public Shape[] getOutputShapes(Shape[] inputShapes) {
         return outputShapes;
@@ -12,36 +12,107 @@ import ai.djl.util.PairList;
 public class MultiHeadAttention extends AbstractBlock {
 
     private int numHeads;
+    private int numHiddens;
     public DotProductAttention attention;
     private Linear W_k;
     private Linear W_q;
     private Linear W_v;
+    private Linear W_qkv;
     private Linear W_o;
+    private Dropout dropout;
 
     public MultiHeadAttention(int numHiddens, int numHeads, float dropout, boolean useBias) {
+        this(numHiddens, numHeads, dropout, useBias, false);
+    }
+
+    /**
+     * Constructor for MultiHeadAttention.
+     *
+     * <p>With {@code fuseQkv}, the block only computes self-attention: the queries, the keys and
+     * the values must be the same array. They are projected by a single {@code Linear} block with
+     * {@code 3 * numHiddens} units whose output holds the query, key and value of each head next to
+     * each other. The interleaved operators of MXNet read the heads from it in place, otherwise it
+     * is transposed once and split into the queries, keys and values of all the heads.
+     *
+     * @param numHiddens the number of hidden units
+     * @param numHeads the number of heads
+     * @param dropout the dropout rate of the attention weights
+     * @param useBias whether the projections have a bias
+     * @param fuseQkv whether to project the queries, keys and values with a single matmul
+     */
+    public MultiHeadAttention(
+            int numHiddens, int numHeads, float dropout, boolean useBias, boolean fuseQkv) {
+        this(numHiddens, numHeads, dropout, useBias, fuseQkv, new DotProductAttention(dropout));
+    }
+
+    /**
+     * Constructor for a local MultiHeadAttention, see {@link DotProductAttention#local(float, int,
+     * int)}.
+     *
+     * @param numHiddens the number of hidden units
+     * @param numHeads the number of heads
+     * @param dropout the dropout rate of the attention weights
+     * @param useBias whether the projections have a bias
+     * @param fuseQkv whether to project the queries, keys and values with a single matmul
+     * @param window the number of keys attended to on each side of a query
+     * @param numGlobal the number of tokens at the start that attend and are attended to globally
+     */
+    public MultiHeadAttention(
+            int numHiddens,
+            int numHeads,
+            float dropout,
+            boolean useBias,
+            boolean fuseQkv,
+            int window,
+            int numGlobal) {
+        this(
+                numHiddens,
+                numHeads,
+                dropout,
+                useBias,
+                fuseQkv,
+                DotProductAttention.local(dropout, window, numGlobal));
+    }
+
+    private MultiHeadAttention(
+            int numHiddens,
+            int numHeads,
+            float dropout,
+            boolean useBias,
+            boolean fuseQkv,
+            DotProductAttention attention) {
         this.numHeads = numHeads;
+        this.numHiddens = numHiddens;
 
-        attention = new DotProductAttention(dropout);
+        this.attention = attention;
 
-        W_q = Linear.builder().setUnits(numHiddens).optBias(useBias).build();
-        addChildBlock("W_q", W_q);
+        if (fuseQkv) {
+            W_qkv = Linear.builder().setUnits(3L * numHiddens).optBias(useBias).build();
+            addChildBlock("W_qkv", W_qkv);
+        } else {
+            W_q = Linear.builder().setUnits(numHiddens).optBias(useBias).build();
+            addChildBlock("W_q", W_q);
 
-        W_k = Linear.builder().setUnits(numHiddens).optBias(useBias).build();
-        addChildBlock("W_k", W_k);
+            W_k = Linear.builder().setUnits(numHiddens).optBias(useBias).build();
+            addChildBlock("W_k", W_k);
 
-        W_v = Linear.builder().setUnits(numHiddens).optBias(useBias).build();
-        addChildBlock("W_v", W_v);
+            W_v = Linear.builder().setUnits(numHiddens).optBias(useBias).build();
+            addChildBlock("W_v", W_v);
+        }
 
         W_o = Linear.builder().setUnits(numHiddens).optBias(useBias).build();
         addChildBlock("W_o", W_o);
 
-        Dropout dropout1 = Dropout.builder().optRate(dropout).build();
-        addChildBlock("dropout", dropout1);
+        this.dropout = Dropout.builder().optRate(dropout).build();
+        addChildBlock("dropout", this.dropout);
     }
 
     @Override
     protected NDList forwardInternal(
             ParameterStore ps, NDList inputs, boolean training, PairList<String, Object> params) {
+        if (W_qkv != null) {
+            return forwardFused(ps, inputs, training, params);
+        }
         // Shape of `queries`, `keys`, or `values`:
         // (`batchSize`, no. of queries or key-value pairs, `numHiddens`)
         // Shape of `validLens`:
@@ -80,6 +151,75 @@ public class MultiHeadAttention extends AbstractBlock {
         return new NDList(W_o.forward(ps, new NDList(outputConcat), training, params).get(0));
     }
 
+    /* Self-attention with the fused projection */
+    private NDList forwardFused(
+            ParameterStore ps, NDList inputs, boolean training, PairList<String, Object> params) {
+        NDArray X = inputs.get(0);
+        if (inputs.get(1) != X || inputs.get(2) != X) {
+            throw new IllegalArgumentException(
+                    "The fused projection requires the same queries, keys and values");
+        }
+        NDArray validLens = inputs.get(3).repeat(0, numHeads);
+        long batchSize = X.getShape().get(0);
+        long numSteps = X.getShape().get(1);
+        NDManager manager = X.getManager();
+
+        NDArray output;
+        if ("MXNet".equals(manager.getEngine().getEngineName()) && !attention.isLocal()) {
+            // The interleaved attention operators of MXNet read the heads straight from the
+            // projection, they expect the time steps on the first axis
+            // Shape of `qkv`: (no. of queries, `batchSize`, 3 * `numHiddens`)
+            NDArray qkv = W_qkv.forward(ps, new NDList(X.swapAxes(0, 1)), training, params).get(0);
+            PairList<String, Object> heads = new PairList<>();
+            heads.add("heads", numHeads);
+            // Shape of `scores`: (`batchSize` * `numHeads`, no. of queries, no. of queries),
+            // divided by the square root of the head size by the operator
+            NDArray scores =
+                    manager.invoke("interleaved_matmul_selfatt_qk", new NDList(qkv), heads).head();
+            // Undo the division by sqrt(headSize) and divide by the divisor of
+            // `DotProductAttention` instead, so that both paths give the same scores
+            long headSize = numHiddens / numHeads;
+            scores = scores.mul(Math.sqrt(headSize) / DotProductAttention.SCORE_DIVISOR);
+            attention.attentionWeights = Chap10Utils.maskedSoftmax(scores, validLens);
+            NDArray weights =
+                    dropout.forward(ps, new NDList(attention.attentionWeights), training, params)
+                            .get(0);
+            output =
+                    manager.invoke(
+                                    "interleaved_matmul_selfatt_valatt",
+                                    new NDList(qkv, weights),
+                                    heads)
+                            .head()
+                            .swapAxes(0, 1);
+        } else {
+            // Shape of `qkv`: (3, `batchSize` * `numHeads`, no. of queries, `numHiddens` /
+            // `numHeads`). The projection holds the query, key and value of each head next to
+            // each other, a single transpose gathers each of them for all the heads, then they
+            // are split along the first axis
+            NDList qkv =
+                    W_qkv.forward(ps, new NDList(X), training, params)
+                            .get(0)
+                            .reshape(batchSize, numSteps, numHeads, 3, -1)
+                            .transpose(3, 0, 2, 1, 4)
+                            .reshape(3, batchSize * numHeads, numSteps, -1)
+                            .split(3, 0);
+            NDArray queries = qkv.get(0).squeeze(0);
+            NDArray keys = qkv.get(1).squeeze(0);
+            NDArray values = qkv.get(2).squeeze(0);
+            output =
+                    Chap10Utils.transposeOutput(
+                            attention
+                                    .forward(
+                                            ps,
+                                            new NDList(queries, keys, values, validLens),
+                                            training,
+                                            params)
+                                    .get(0),
+                            numHeads);
+        }
+        return new NDList(W_o.forward(ps, new NDList(output), training, params).get(0));
+    }
+
     @Override
     public Shape[] getOutputShapes(Shape[] inputShapes) {
         throw new UnsupportedOperationException("Not implemented");
@@ -87,6 +227,14 @@ public class MultiHeadAttention extends AbstractBlock {
 
     @Override
     public void initializeChildBlocks(NDManager manager, DataType dataType, Shape... inputShapes) {
+        if (W_qkv != null) {
+            Shape shape = inputShapes[0];
+            W_qkv.initialize(manager, dataType, shape);
+            W_o.initialize(manager, dataType, new Shape(shape.get(0), shape.get(1), numHiddens));
+            Shape scores = new Shape(shape.get(0) * numHeads, shape.get(1), shape.get(1));
+            dropout.initialize(manager, dataType, scores);
+            return;
+        }
         try (NDManager sub = manager.newSubManager()) {
             NDArray queries = sub.zeros(inputShapes[0], dataType);
             NDArray keys = sub.zeros(inputShapes[1], dataType);
@@ -1,3 +1,4 @@
+import ai.djl.Device;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
@@ -9,25 +10,57 @@ import ai.djl.nn.norm.Dropout;
 import ai.djl.training.ParameterStore;
 import ai.djl.util.PairList;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class PositionalEncoding extends AbstractBlock {
 
+    private static final Map<String, Table> TABLES = new HashMap<>();
+
     private Dropout dropout;
-    public NDArray P;
+    private int numHiddens;
+    private int maxLen;
 
-    public PositionalEncoding(int numHiddens, float dropout, int maxLen, NDManager manager) {
+    /**
+     * The encodings of the first {@code maxLen} positions, of shape (1, {@code maxLen}, {@code
+     * numHiddens}), in the manager given to the constructor.
+     *
+     * @deprecated forward no longer reads it, use {@link #encoding} instead. It is only computed by
+     *     the constructor taking a manager, for the code that reads it.
+     */
+    @Deprecated public NDArray P;
+
+    /**
+     * Constructor for PositionalEncoding.
+     *
+     * <p>The encodings are not computed here: they are sliced with {@link #encoding} when a
+     * sequence arrives, out of a table shared with all the other instances.
+     *
+     * @param numHiddens the number of hidden units
+     * @param dropout the dropout rate
+     * @param maxLen the maximum length of a sequence
+     */
+    public PositionalEncoding(int numHiddens, float dropout, int maxLen) {
         this.dropout = Dropout.builder().optRate(dropout).build();
         this.addChildBlock("dropout", this.dropout);
+        this.numHiddens = numHiddens;
+        this.maxLen = maxLen;
+    }
 
-        // Create a long enough `P`
-        P = manager.zeros(new Shape(1, maxLen, numHiddens));
-        NDArray X =
-                manager.arange(maxLen)
-                        .reshape(-1, 1)
-                        .div(
-                                manager.create(10000)
-                                        .pow(manager.arange(0, numHiddens, 2).div(numHiddens)));
-        P.set(new NDIndex(":, :, {}::{}", 0, 2), X.sin());
-        P.set(new NDIndex(":, :, {}::{}", 1, 2), X.cos());
+    /**
+     * Constructor for PositionalEncoding that also computes {@link #P} in {@code manager}.
+     *
+     * @param numHiddens the number of hidden units
+     * @param dropout the dropout rate
+     * @param maxLen the maximum length of a sequence
+     * @param manager the manager of {@link #P}
+     * @deprecated {@link #P} is computed for every instance, use {@link #PositionalEncoding(int,
+     *     float, int)} when it is not read
+     */
+    @Deprecated
+    public PositionalEncoding(int numHiddens, float dropout, int maxLen, NDManager manager) {
+        this(numHiddens, dropout, maxLen);
+        P = manager.create(compute(maxLen, numHiddens), new Shape(1, maxLen, numHiddens));
     }
 
     @Override
@@ -37,10 +70,89 @@ public class PositionalEncoding extends AbstractBlock {
             boolean training,
             PairList<String, Object> params) {
         NDArray X = inputs.get(0);
-        X = X.add(P.get(":, :{}, :", X.getShape().get(1)));
+        long numSteps = X.getShape().get(1);
+        if (numSteps > maxLen) {
+            throw new IllegalArgumentException(
+                    String.format("Sequence of length %d longer than %d", numSteps, maxLen));
+        }
+        X = X.add(encoding(numSteps, numHiddens, X.getDataType(), X.getManager()));
         return new NDList(dropout.forward(parameterStore, new NDList(X), training, params).get(0));
     }
 
+    /**
+     * Returns the positional encoding of the first {@code numSteps} positions, of shape (1, {@code
+     * numSteps}, {@code numHiddens}), attached to {@code manager} on its device.
+     *
+     * <p>There is one table for each number of hidden units, data type and device in the process.
+     * It is computed on first use and doubled when a longer sequence arrives. The encoding is
+     * sliced out of it on every call rather than cached for each length, so the table is all that
+     * is kept whatever the lengths of the sequences. The returned array belongs to the caller.
+     */
+    public static synchronized NDArray encoding(
+            long numSteps, int numHiddens, DataType dataType, NDManager manager) {
+        Device device = manager.getDevice();
+        String key = numHiddens + "," + dataType + "," + device;
+        Table table = TABLES.computeIfAbsent(key, k -> new Table(device));
+        long length = table.P == null ? 0 : table.P.getShape().get(1);
+        if (numSteps > length) {
+            table.resize(Math.max(numSteps, 2 * length), numHiddens, dataType);
+        }
+        NDArray P = table.P.get(new NDIndex(":, :{}", numSteps));
+        P.attach(manager);
+        return P;
+    }
+
+    /**
+     * Closes all the tables. The arrays returned by {@link #encoding} belong to their manager and
+     * stay valid.
+     */
+    public static synchronized void clearCache() {
+        for (Table table : TABLES.values()) {
+            table.manager.close();
+        }
+        TABLES.clear();
+    }
+
+    /* The encodings of `maxLen` positions one after the other */
+    private static float[] compute(long maxLen, int numHiddens) {
+        float[] data = new float[Math.toIntExact(maxLen * numHiddens)];
+        for (int pos = 0; pos < maxLen; pos++) {
+            for (int i = 0; i < numHiddens; i += 2) {
+                double x = pos / Math.pow(10000, (double) i / numHiddens);
+                data[pos * numHiddens + i] = (float) Math.sin(x);
+                if (i + 1 < numHiddens) {
+                    data[pos * numHiddens + i + 1] = (float) Math.cos(x);
+                }
+            }
+        }
+        return data;
+    }
+
+    /* The encodings of a number of hidden units, data type and device */
+    private static final class Table {
+
+        NDManager manager;
+        NDArray P;
+
+        Table(Device device) {
+            manager = NDManager.newBaseManager(device);
+            manager.setName("positionalEncoding");
+        }
+
+        void resize(long maxLen, int numHiddens, DataType dataType) {
+            if (P != null) {
+                // Only slices of it were handed out
+                P.close();
+            }
+            NDArray table =
+                    manager.create(compute(maxLen, numHiddens), new Shape(1, maxLen, numHiddens));
+            P = table.toType(dataType, false);
+            if (P != table) {
+                table.close();
+            }
+        }
+    }
+
     @Override
     public Shape[] getOutputShapes(Shape[] inputShapes) {
         throw new UnsupportedOperationException("Not implemented");
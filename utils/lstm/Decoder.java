@@ -10,6 +10,23 @@ public abstract class Decoder extends AbstractBlock {
 
     public abstract NDList initState(NDList encOutputs);
 
+    /**
+     * Keeps the rows of the decoder state that belong to the given sequences of the batch, in the
+     * given order.
+     *
+     * <p>{@link EncoderDecoder#predict} uses it to stop decoding the sequences that are finished,
+     * and {@link EncoderDecoder#beamSearch} to follow the selected hypotheses. Only the decoder
+     * knows along which axis each of its states is batched, it gathers each of them along that
+     * axis, such as {@code state.get(new NDIndex(":, {}", indices))} for the (`numLayers`,
+     * `batchSize`, `numHiddens`) state of an rnn.
+     *
+     * @param state the state returned by the last forward pass
+     * @param indices the rows to keep, as a 1-D array of indices into the batch, an index can
+     *     appear several times
+     * @return the state for the selected sequences
+     */
+    public abstract NDList reorderState(NDList state, NDArray indices);
+
     @Override
     public Shape[] getOutputShapes(Shape[] inputShapes) {
         throw new UnsupportedOperationException("Not implemented");
@@ -1,12 +1,15 @@
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
 import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
 import ai.djl.nn.AbstractBlock;
 import ai.djl.training.ParameterStore;
 import ai.djl.util.PairList;
 
+import java.util.Arrays;
+
 /** The base class for the encoder-decoder architecture. */
 public class EncoderDecoder extends AbstractBlock {
 
@@ -36,6 +39,282 @@ public class EncoderDecoder extends AbstractBlock {
         return decoder.forward(parameterStore, new NDList(decX).addAll(decState), training, params);
     }
 
+    /**
+     * Translates a batch of source sequences greedily, one token at a time.
+     *
+     * <p>The encoder runs once for the whole batch. The decoder is then fed only the token it
+     * predicted at the previous step together with its state, so each step costs the same whatever
+     * the number of tokens already generated. A sequence stops as soon as it predicts {@code eos},
+     * and is removed from the batch with {@link Decoder#reorderState} so that the remaining steps
+     * only run for the unfinished sequences.
+     *
+     * @param encX the source tokens of shape (batchSize, numSteps)
+     * @param encValidLen the valid length of each source sequence
+     * @param bos the token fed to the decoder at the first step
+     * @param eos the token that ends a sequence, it is not part of the output
+     * @param maxSteps the maximum number of tokens generated for a sequence
+     * @return the generated tokens of each sequence
+     */
+    public int[][] predict(NDArray encX, NDArray encValidLen, int bos, int eos, int maxSteps) {
+        int batchSize = (int) encX.getShape().get(0);
+        int[][] outputs = new int[batchSize][];
+        int[] lengths = new int[batchSize];
+        int[][] tokens = new int[batchSize][maxSteps];
+        try (NDManager manager = encX.getManager().newSubManager()) {
+            // Everything computed from the inputs is released with `manager`
+            NDList inputs = new NDList(encX, encValidLen);
+            inputs.tempAttach(manager);
+            ParameterStore ps = new ParameterStore(manager, false);
+
+            NDList encOutputs = encoder.forward(ps, new NDList(encX, encValidLen), false);
+            NDList state = decoder.initState(encOutputs.addAll(new NDList(encValidLen)));
+            NDArray decX = manager.full(new Shape(batchSize, 1), bos, encX.getDataType());
+            // Index of the sequence in the batch for each row still being decoded
+            int[] active = new int[batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                active[i] = i;
+            }
+            for (int step = 0; step < maxSteps && active.length > 0; step++) {
+                NDList output = decoder.forward(ps, new NDList(decX).addAll(state), false);
+                state = output.subNDList(1);
+                // We use the token with the highest prediction likelihood as the input of the
+                // decoder at the next time step
+                NDArray next = output.head().argMax(2).toType(encX.getDataType(), false);
+                long[] preds = next.toType(DataType.INT64, false).toLongArray();
+
+                int[] keep = new int[active.length];
+                int numKept = 0;
+                for (int row = 0; row < active.length; row++) {
+                    if (preds[row] == eos) {
+                        continue;
+                    }
+                    tokens[active[row]][lengths[active[row]]++] = (int) preds[row];
+                    keep[numKept++] = row;
+                }
+                if (numKept < active.length && numKept > 0) {
+                    NDArray indices = manager.create(Arrays.copyOf(keep, numKept));
+                    state = decoder.reorderState(state, indices);
+                    next = next.get(new NDIndex("{}", indices));
+                    int[] remaining = new int[numKept];
+                    for (int i = 0; i < numKept; i++) {
+                        remaining[i] = active[keep[i]];
+                    }
+                    active = remaining;
+                } else if (numKept == 0) {
+                    active = new int[0];
+                }
+                decX = next;
+            }
+        }
+        for (int i = 0; i < batchSize; i++) {
+            outputs[i] = Arrays.copyOf(tokens[i], lengths[i]);
+        }
+        return outputs;
+    }
+
+    /**
+     * Translates a batch of source sequences with beam search.
+     *
+     * <p>The {@code beamSize} hypotheses of every source are decoded together as one batch of
+     * {@code batchSize * beamSize} rows. At each step the best {@code 2 * beamSize} extensions of
+     * the hypotheses of a source are selected on the device by a top-k over all their scores,
+     * without sorting the others, and only those are copied back to the host. The decoder state is
+     * then reordered to the selected hypotheses with a single {@link Decoder#reorderState} call,
+     * skipped when every hypothesis extends its own row, as always with a beam size of 1. A
+     * hypothesis ending with {@code eos} is finished and scored by its log-likelihood divided by
+     * {@code length^alpha}. Once a source has {@code beamSize} finished hypotheses, its rows are
+     * dropped from the batch.
+     *
+     * @param encX the source tokens of shape (batchSize, numSteps)
+     * @param encValidLen the valid length of each source sequence
+     * @param bos the token fed to the decoder at the first step
+     * @param eos the token that ends a sequence, it is not part of the output
+     * @param beamSize the number of hypotheses kept for each source
+     * @param maxSteps the maximum number of tokens generated for a sequence
+     * @param alpha the length normalization exponent, 0 to rank by log-likelihood only
+     * @return the best hypothesis of each sequence
+     */
+    public int[][] beamSearch(
+            NDArray encX,
+            NDArray encValidLen,
+            int bos,
+            int eos,
+            int beamSize,
+            int maxSteps,
+            float alpha) {
+        int batchSize = (int) encX.getShape().get(0);
+        int[][] best = new int[batchSize][];
+        float[] bestScores = new float[batchSize];
+        Arrays.fill(bestScores, Float.NEGATIVE_INFINITY);
+        int[] numFinished = new int[batchSize];
+        try (NDManager manager = encX.getManager().newSubManager()) {
+            // Everything computed from the inputs is released with `manager`
+            NDList inputs = new NDList(encX, encValidLen);
+            inputs.tempAttach(manager);
+            ParameterStore ps = new ParameterStore(manager, false);
+
+            NDList encOutputs = encoder.forward(ps, new NDList(encX, encValidLen), false);
+            NDList state = decoder.initState(encOutputs.addAll(new NDList(encValidLen)));
+            // Each source starts with `beamSize` copies of the same hypothesis, only the first one
+            // is extended at the first step so that the beams do not repeat each other
+            int[] rows = new int[batchSize * beamSize];
+            float[] scores = new float[batchSize * beamSize];
+            int[][] seqs = new int[batchSize * beamSize][0];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = i / beamSize;
+                scores[i] = i % beamSize == 0 ? 0 : Float.NEGATIVE_INFINITY;
+            }
+            if (beamSize > 1) {
+                state = decoder.reorderState(state, manager.create(rows));
+            }
+            NDArray decX = manager.full(new Shape(rows.length, 1), bos, encX.getDataType());
+            // The sources still being decoded, each of them owns `beamSize` consecutive rows
+            int[] sources = new int[batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                sources[i] = i;
+            }
+
+            for (int step = 0; step < maxSteps && sources.length > 0; step++) {
+                NDList output = decoder.forward(ps, new NDList(decX).addAll(state), false);
+                state = output.subNDList(1);
+                NDArray logProbs = output.head().logSoftmax(-1);
+                int vocabSize = (int) logProbs.getShape().get(2);
+                int width = beamSize * vocabSize;
+                // Score of every extension of every hypothesis, one row per source
+                NDArray candidates =
+                        logProbs.reshape(seqs.length, vocabSize)
+                                .add(manager.create(scores, new Shape(seqs.length, 1)))
+                                .reshape(sources.length, width);
+                // At most `beamSize` of the candidates end with `eos`, so that keeping twice as
+                // many leaves enough of them to extend
+                int numCandidates = Math.min(2 * beamSize, width);
+                NDList top = topK(candidates, numCandidates);
+                float[] topValues = top.get(0).toFloatArray();
+                long[] topIndices = top.get(1).toType(DataType.INT64, false).toLongArray();
+
+                int numAlive = 0;
+                int[] nextSources = new int[sources.length];
+                int[] parents = new int[seqs.length];
+                int[] tokens = new int[seqs.length];
+                float[] nextScores = new float[seqs.length];
+                int[][] nextSeqs = new int[seqs.length][];
+                for (int i = 0; i < sources.length; i++) {
+                    int source = sources[i];
+                    int offset = numAlive * beamSize;
+                    int kept = 0;
+                    for (int j = 0; j < numCandidates && kept < beamSize; j++) {
+                        float score = topValues[i * numCandidates + j];
+                        if (score == Float.NEGATIVE_INFINITY) {
+                            break;
+                        }
+                        int parent =
+                                i * beamSize
+                                        + (int) (topIndices[i * numCandidates + j] / vocabSize);
+                        int token = (int) (topIndices[i * numCandidates + j] % vocabSize);
+                        if (token == eos) {
+                            // Only the hypotheses among the best `beamSize` candidates are finished
+                            if (j < beamSize) {
+                                finish(source, seqs[parent], score, alpha, best, bestScores);
+                                numFinished[source]++;
+                            }
+                            continue;
+                        }
+                        parents[offset + kept] = parent;
+                        tokens[offset + kept] = token;
+                        nextScores[offset + kept] = score;
+                        nextSeqs[offset + kept] =
+                                Arrays.copyOf(seqs[parent], seqs[parent].length + 1);
+                        nextSeqs[offset + kept][seqs[parent].length] = token;
+                        kept++;
+                    }
+                    if (numFinished[source] >= beamSize || kept == 0) {
+                        continue;
+                    }
+                    // Fill the missing beams with copies that are never extended
+                    for (int k = kept; k < beamSize; k++) {
+                        parents[offset + k] = parents[offset];
+                        tokens[offset + k] = tokens[offset];
+                        nextScores[offset + k] = Float.NEGATIVE_INFINITY;
+                        nextSeqs[offset + k] = nextSeqs[offset];
+                    }
+                    nextSources[numAlive++] = source;
+                }
+
+                int numRows = numAlive * beamSize;
+                boolean reorder = !isIdentity(parents, numRows, seqs.length);
+                sources = Arrays.copyOf(nextSources, numAlive);
+                scores = Arrays.copyOf(nextScores, numRows);
+                seqs = Arrays.copyOf(nextSeqs, numRows);
+                if (numRows > 0) {
+                    if (reorder) {
+                        state =
+                                decoder.reorderState(
+                                        state, manager.create(Arrays.copyOf(parents, numRows)));
+                    }
+                    decX =
+                            manager.create(Arrays.copyOf(tokens, numRows), new Shape(numRows, 1))
+                                    .toType(encX.getDataType(), false);
+                }
+            }
+            // The hypotheses that reached `maxSteps` compete with the finished ones
+            for (int i = 0; i < seqs.length; i++) {
+                finish(sources[i / beamSize], seqs[i], scores[i], alpha, best, bestScores);
+            }
+        }
+        for (int i = 0; i < batchSize; i++) {
+            if (best[i] == null) {
+                best[i] = new int[0];
+            }
+        }
+        return best;
+    }
+
+    /*
+     * The `k` largest values of each row of `X` in descending order, followed by their indices.
+     * Unlike a full sort of the rows, it only orders the values it returns
+     */
+    private static NDList topK(NDArray X, int k) {
+        NDManager manager = X.getManager();
+        if ("MXNet".equals(manager.getEngine().getEngineName())) {
+            // The MXNet engine does not implement `NDArray.topK`, its operator does the same
+            PairList<String, Object> params = new PairList<>();
+            params.add("axis", 1);
+            params.add("k", k);
+            params.add("ret_typ", "both");
+            params.add("is_ascend", false);
+            params.add("dtype", "int64");
+            return manager.invoke("topk", new NDList(X), params);
+        }
+        return X.topK(k, 1, true, true);
+    }
+
+    /* Whether the first `numRows` parents are the `batchSize` rows of the batch in order */
+    private static boolean isIdentity(int[] parents, int numRows, int batchSize) {
+        if (numRows != batchSize) {
+            return false;
+        }
+        for (int i = 0; i < numRows; i++) {
+            if (parents[i] != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Keeps `seq` if it is the best hypothesis of `source` after length normalization */
+    private static void finish(
+            int source, int[] seq, float score, float alpha, int[][] best, float[] bestScores) {
+        if (score == Float.NEGATIVE_INFINITY) {
+            return;
+        }
+        // The length counts the `eos` token
+        float normalized = score / (float) Math.pow(seq.length + 1, alpha);
+        if (normalized > bestScores[source]) {
+            bestScores[source] = normalized;
+            best[source] = seq;
+        }
+    }
+
     @Override
     public Shape[] getOutputShapes(Shape[] inputShapes) {
         throw new UnsupportedOperationException("Not implemented");
@@ -0,0 +1,42 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/** Appends metrics to a CSV file with the columns timestamp, epoch, name and value. */
+public class CsvMetricsExporter implements MetricsExporter {
+
+    private BufferedWriter writer;
+
+    public CsvMetricsExporter(Path file) throws IOException {
+        boolean exists = Files.exists(file) && Files.size(file) > 0;
+        writer =
+                Files.newBufferedWriter(
+                        file,
+                        StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND);
+        if (!exists) {
+            writer.write("timestamp,epoch,name,value");
+            writer.newLine();
+        }
+    }
+
+    @Override
+    public void export(List<Point> points) throws IOException {
+        for (Point point : points) {
+            writer.write(
+                    point.timestamp + "," + point.epoch + "," + point.name + "," + point.value);
+            writer.newLine();
+        }
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,44 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/** Appends metrics to a file with one JSON object per line. */
+public class JsonLinesMetricsExporter implements MetricsExporter {
+
+    private BufferedWriter writer;
+
+    public JsonLinesMetricsExporter(Path file) throws IOException {
+        writer =
+                Files.newBufferedWriter(
+                        file,
+                        StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public void export(List<Point> points) throws IOException {
+        for (Point point : points) {
+            // NaN and infinity are not valid JSON numbers
+            String value = Double.isFinite(point.value) ? String.valueOf(point.value) : "null";
+            writer.write(
+                    String.format(
+                            "{\"timestamp\":%d,\"epoch\":%d,\"name\":\"%s\",\"value\":%s}",
+                            point.timestamp,
+                            point.epoch,
+                            point.name.replace("\\", "\\\\").replace("\"", "\\\""),
+                            value));
+            writer.newLine();
+        }
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,35 @@
+import java.io.IOException;
+import java.util.List;
+
+/** Writes the metrics collected by a {@link MetricsRecorder} somewhere outside of the notebook. */
+public interface MetricsExporter extends AutoCloseable {
+
+    /**
+     * Exports a batch of points. Called from the writer thread of the recorder, never from the
+     * training thread.
+     *
+     * @param points the points recorded since the previous call, in recording order
+     * @throws IOException if the points cannot be written
+     */
+    void export(List<Point> points) throws IOException;
+
+    /** {@inheritDoc} */
+    @Override
+    default void close() throws IOException {}
+
+    /** A single value of a metric. */
+    final class Point {
+
+        public final long timestamp; // Milliseconds since the epoch
+        public final int epoch;
+        public final String name;
+        public final double value;
+
+        public Point(long timestamp, int epoch, String name, double value) {
+            this.timestamp = timestamp;
+            this.epoch = epoch;
+            this.name = name;
+            this.value = value;
+        }
+    }
+}
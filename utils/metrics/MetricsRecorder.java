@@ -0,0 +1,179 @@
+import ai.djl.metric.Metrics;
+import ai.djl.ndarray.NDManager;
+import ai.djl.training.Trainer;
+import ai.djl.training.evaluator.Evaluator;
+import ai.djl.training.listener.TrainingListenerAdapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects training metrics and hands them to a set of {@link MetricsExporter}s.
+ *
+ * <p>Recording a value only puts it in a queue. A writer thread takes the queued points in batches,
+ * at most every {@code flushMillis}, and passes them to the exporters, so file and network I/O
+ * never happen on the training thread.
+ *
+ * <p>{@code TimeMachine.trainCh8} and {@code trainSeq2Seq} accept a recorder directly. For loops
+ * driven by {@code EasyTrain}, such as {@code Training.trainingChapter6}, add the recorder to the
+ * {@code DefaultTrainingConfig} with {@code addTrainingListeners}.
+ */
+public class MetricsRecorder extends TrainingListenerAdapter implements AutoCloseable {
+
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    private List<MetricsExporter> exporters;
+    private BlockingQueue<MetricsExporter.Point> queue;
+    private Thread writer;
+    private long flushMillis;
+    private volatile boolean closed;
+
+    private int epoch;
+    private long[] stepNanos;
+    private int numSteps;
+    private long lastBatch;
+
+    public MetricsRecorder(MetricsExporter... exporters) {
+        this(1000, exporters);
+    }
+
+    /**
+     * Constructor for MetricsRecorder.
+     *
+     * @param flushMillis the maximum time a point waits in the queue before being exported
+     * @param exporters where to export the metrics
+     */
+    public MetricsRecorder(long flushMillis, MetricsExporter... exporters) {
+        this.exporters = Arrays.asList(exporters);
+        this.flushMillis = flushMillis;
+        this.queue = new LinkedBlockingQueue<>();
+        this.stepNanos = new long[1024];
+        this.epoch = 1;
+        writer = new Thread(this::drain, "metrics-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /* Records a value of `name` for the current epoch */
+    public void record(String name, double value) {
+        queue.add(new MetricsExporter.Point(System.currentTimeMillis(), epoch, name, value));
+    }
+
+    /* Records the wall time of one training step, reported as percentiles after the epoch */
+    public void recordStep(long nanos) {
+        if (numSteps == stepNanos.length) {
+            stepNanos = Arrays.copyOf(stepNanos, numSteps * 2);
+        }
+        stepNanos[numSteps++] = nanos;
+    }
+
+    /* Records the native memory held by `manager` and the used JVM heap */
+    public void recordMemory(NDManager manager) {
+        record("memory_native_bytes", TrainingProfiler.nativeBytes(manager));
+        Runtime runtime = Runtime.getRuntime();
+        record("memory_heap_bytes", runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    /* Records the step latency percentiles of the epoch and moves on to the next one */
+    public void endEpoch() {
+        if (numSteps > 0) {
+            long[] sorted = Arrays.copyOf(stepNanos, numSteps);
+            Arrays.sort(sorted);
+            for (double p : PERCENTILES) {
+                int index = (int) Math.ceil(p / 100 * numSteps) - 1;
+                record(String.format("step_latency_p%.0f_ms", p), sorted[Math.max(index, 0)] / 1E6);
+            }
+        }
+        numSteps = 0;
+        epoch++;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onTrainingBatch(Trainer trainer, BatchData batchData) {
+        long now = System.nanoTime();
+        if (lastBatch != 0) {
+            recordStep(now - lastBatch);
+        }
+        lastBatch = now;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onEpoch(Trainer trainer) {
+        Metrics metrics = trainer.getMetrics();
+        if (metrics != null) {
+            for (Evaluator evaluator : trainer.getEvaluators()) {
+                for (String prefix : new String[] {"train_epoch_", "validate_epoch_"}) {
+                    String name = prefix + evaluator.getName();
+                    if (metrics.hasMetric(name)) {
+                        record(name, metrics.latestMetric(name).getValue().doubleValue());
+                    }
+                }
+            }
+        }
+        recordMemory(trainer.getManager());
+        lastBatch = 0;
+        endEpoch();
+    }
+
+    /* Exports the remaining points, then closes the exporters */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (MetricsExporter exporter : exporters) {
+            try {
+                exporter.close();
+            } catch (Exception e) {
+                System.err.println("Failed to close metrics exporter: " + e);
+            }
+        }
+    }
+
+    private void drain() {
+        List<MetricsExporter.Point> batch = new ArrayList<>();
+        while (true) {
+            boolean last = closed;
+            try {
+                MetricsExporter.Point first = queue.poll(flushMillis, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    // Give the training thread some time to record the rest of the batch
+                    Thread.sleep(last ? 0 : flushMillis);
+                    queue.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                last = true;
+            }
+            if (!batch.isEmpty()) {
+                for (MetricsExporter exporter : exporters) {
+                    try {
+                        exporter.export(batch);
+                    } catch (Exception e) {
+                        System.err.println("Failed to export metrics: " + e);
+                    }
+                }
+                batch.clear();
+            }
+            if (last && queue.isEmpty()) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Serves the latest value of every metric in the Prometheus text format.
+ *
+ * <p>The endpoint listens on the loopback address only, at {@code http://localhost:<port>/metrics}.
+ * Every metric is exposed as a gauge named {@code <prefix>_<name>}.
+ */
+public class PrometheusMetricsExporter implements MetricsExporter {
+
+    private HttpServer server;
+    private String prefix;
+    private Map<String, Double> latest;
+
+    public PrometheusMetricsExporter(int port) throws IOException {
+        this(port, "d2l");
+    }
+
+    public PrometheusMetricsExporter(int port, String prefix) throws IOException {
+        this.prefix = sanitize(prefix);
+        this.latest = new TreeMap<>();
+        server =
+                HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext(
+                "/metrics",
+                exchange -> {
+                    byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders()
+                            .set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(body);
+                    }
+                });
+        server.start();
+    }
+
+    @Override
+    public void export(List<Point> points) {
+        synchronized (latest) {
+            for (Point point : points) {
+                latest.put(sanitize(point.name), point.value);
+            }
+        }
+    }
+
+    /* The body returned to a scrape */
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        synchronized (latest) {
+            for (Map.Entry<String, Double> entry : latest.entrySet()) {
+                String name = prefix + "_" + entry.getKey();
+                out.append("# TYPE ").append(name).append(" gauge\n");
+                out.append(name).append(' ').append(format(entry.getValue())).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private static String format(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        return String.valueOf(value);
+    }
+
+    /* Metric names may only contain letters, digits and underscores */
+    private static String sanitize(String name) {
+        String sanitized = name.replaceAll("[^a-zA-Z0-9_]", "_");
+        return Character.isDigit(sanitized.charAt(0)) ? "_" + sanitized : sanitized;
+    }
+}
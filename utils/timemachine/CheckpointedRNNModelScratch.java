@@ -0,0 +1,88 @@
+import ai.djl.Device;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.training.ParameterStore;
+import ai.djl.training.loss.Loss;
+import ai.djl.util.Pair;
+
+/**
+ * An {@link RNNModelScratch} that only keeps its state every {@link #checkpointSteps} time steps
+ * for backward. The steps in between are computed again during backward, see {@link
+ * CheckpointedUnroll}.
+ */
+public class CheckpointedRNNModelScratch extends RNNModelScratch implements LossFusedModel {
+
+    // Number of time steps between two saved states in `forwardLoss`, 0 to save none
+    public int checkpointSteps;
+
+    public CheckpointedRNNModelScratch(
+            int vocabSize,
+            int numHiddens,
+            Device device,
+            Functions.TriFunction<Integer, Integer, Device, NDList> getParams,
+            Functions.TriFunction<Integer, Integer, Device, NDList> initRNNState,
+            Functions.TriFunction<NDArray, NDList, NDList, Pair<NDArray, NDList>> forwardFn,
+            boolean indexInput,
+            int checkpointSteps) {
+        super(vocabSize, numHiddens, device, getParams, initRNNState, forwardFn, indexInput);
+        this.checkpointSteps = checkpointSteps;
+    }
+
+    /**
+     * Computes the loss of the outputs with {@code labels} for training, keeping the state only
+     * every {@link #checkpointSteps} time steps. The steps in between are computed again during
+     * backward, see {@link CheckpointedUnroll}.
+     *
+     * @param X the inputs, of shape (`batchSize`, `numSteps`)
+     * @param state the initial state
+     * @param labels the labels of the outputs, in the order of the outputs of {@link #forward}
+     * @param loss the loss function
+     * @return the surrogate to call backward on, the loss, then the state
+     */
+    public NDList forwardLoss(NDArray X, NDList state, NDArray labels, Loss loss) {
+        long batchSize = X.getShape().get(0);
+        long numSteps = X.getShape().get(1);
+        long segmentSteps = checkpointSteps > 0 ? checkpointSteps : numSteps;
+        int numSegments = (int) ((numSteps + segmentSteps - 1) / segmentSteps);
+        return CheckpointedUnroll.run(
+                numSegments,
+                state,
+                new NDList(X, labels),
+                () -> params,
+                (segment, start, withLoss) -> {
+                    long from = segment * segmentSteps;
+                    long to = Math.min(from + segmentSteps, numSteps);
+                    Pair<NDArray, NDList> pair =
+                            forward(X.get(new NDIndex(":, {}:{}", from, to)), start);
+                    if (!withLoss) {
+                        return pair.getValue();
+                    }
+                    // Weighted by the share of the time steps in the segment, so that the
+                    // losses of the segments add up to the mean loss
+                    NDArray y = labels.get(new NDIndex("{}:{}", from * batchSize, to * batchSize));
+                    NDArray l =
+                            loss.evaluate(new NDList(y), new NDList(pair.getKey()))
+                                    .mean()
+                                    .mul((float) (to - from) / numSteps);
+                    return new NDList(l, l).addAll(pair.getValue());
+                });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isLossFused() {
+        return checkpointSteps > 0;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public NDList forwardLoss(
+            ParameterStore parameterStore,
+            NDList inputs,
+            NDArray labels,
+            Loss loss,
+            boolean training) {
+        return forwardLoss(inputs.get(0), inputs.subNDList(1), labels, loss);
+    }
+}
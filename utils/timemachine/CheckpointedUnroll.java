@@ -0,0 +1,150 @@
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.training.GradientCollector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unrolls a recurrent network over a sequence in segments of time steps, without keeping the
+ * activations of the whole sequence alive for backward.
+ *
+ * <p>A first pass runs the segments without recording and only keeps the state at the start of each
+ * segment. A second pass goes through the segments from the last one: it recomputes a segment from
+ * its saved state while recording, then calls backward on its loss plus the dot product of its
+ * final state with the gradient coming from the next segment, which gives the gradient of its
+ * initial state. The gradients of the parameters are summed over the segments and passed on by a
+ * surrogate, like in {@code LossFusedRNNModel.forwardLoss}.
+ *
+ * <p>Only the states at the segment boundaries and the activations of one segment are alive at
+ * once, at the cost of running the forward pass twice. Layers with dropout draw new masks when a
+ * segment is recomputed. Recomputing requires pausing the autograd recording with {@code
+ * RecordingPause}, with engines that do not support it all the segments are recorded in the graph
+ * of the caller.
+ */
+public class CheckpointedUnroll {
+
+    private CheckpointedUnroll() {}
+
+    /**
+     * Runs the segments and computes the gradients of the sum of their losses.
+     *
+     * @param numSegments the number of segments
+     * @param state the state at the start of the first segment, can be empty, it gets no gradient
+     * @param inputs the arrays read by the segments, such as the inputs and the labels
+     * @param params returns the parameters, called after the first pass so that blocks initialized
+     *     on their first forward are ready
+     * @param segment given the index of a segment, its initial state and whether to compute the
+     *     loss, returns the array to call backward on and the loss followed by the final state, or
+     *     only the final state without the loss
+     * @return the surrogate to call backward on, the loss, then the final state
+     */
+    public static NDList run(
+            int numSegments,
+            NDList state,
+            NDList inputs,
+            Functions.SimpleFunction<NDList> params,
+            Functions.TriFunction<Integer, NDList, Boolean, NDList> segment) {
+        NDManager manager = inputs.head().getManager();
+        if (!RecordingPause.isSupported(manager)) {
+            NDArray objective = null;
+            NDArray loss = null;
+            for (int i = 0; i < numSegments; i++) {
+                NDList result = segment.apply(i, state, true);
+                objective = objective == null ? result.get(0) : objective.add(result.get(0));
+                loss = loss == null ? result.get(1) : loss.add(result.get(1));
+                state = result.subNDList(2);
+            }
+            return new NDList(objective, loss).addAll(state);
+        }
+
+        // States at the start of each segment
+        List<NDList> states = new ArrayList<>();
+        NDList parameters = new NDList();
+        NDList grads = null;
+        float loss = 0;
+        try (RecordingPause pause = RecordingPause.pause(manager)) {
+            pause.setTraining(true);
+            for (int i = 0; i < numSegments; i++) {
+                states.add(state);
+                try (NDManager sub = manager.newSubManager()) {
+                    inputs.tempAttach(sub);
+                    state.tempAttach(sub);
+                    state = segment.apply(i, state, false);
+                    state.attach(manager);
+                }
+            }
+
+            for (NDArray param : params.apply()) {
+                if (param.hasGradient()) {
+                    parameters.add(param);
+                }
+            }
+            // Gradient of the loss of the following segments with respect to the final state
+            NDList stateGrads = null;
+            for (int i = numSegments - 1; i >= 0; i--) {
+                try (NDManager sub = manager.newSubManager()) {
+                    inputs.tempAttach(sub);
+                    if (i > 0) {
+                        states.get(i).attach(sub);
+                    }
+                    NDList start = new NDList();
+                    for (NDArray s : states.get(i)) {
+                        NDArray copy = s.duplicate();
+                        copy.attach(sub);
+                        copy.setRequiresGradient(true);
+                        start.add(copy);
+                    }
+
+                    // A collector can only be opened with the training mode off
+                    pause.setTraining(false);
+                    try (GradientCollector gc = Engine.getInstance().newGradientCollector()) {
+                        NDList result = segment.apply(i, start, true);
+                        NDArray objective = result.get(0);
+                        if (stateGrads != null) {
+                            NDList end = result.subNDList(2);
+                            for (int j = 0; j < end.size(); j++) {
+                                objective = objective.add(end.get(j).mul(stateGrads.get(j)).sum());
+                            }
+                            stateGrads.attach(sub);
+                        }
+                        gc.backward(objective);
+                        loss += result.get(1).toType(DataType.FLOAT32, false).getFloat();
+                    }
+
+                    stateGrads = new NDList();
+                    for (NDArray s : start) {
+                        stateGrads.add(s.getGradient().duplicate());
+                    }
+                    stateGrads.attach(manager);
+                    NDList sums = new NDList();
+                    for (int j = 0; j < parameters.size(); j++) {
+                        NDArray gradient = parameters.get(j).getGradient();
+                        gradient.attach(sub);
+                        sums.add(grads == null ? gradient.duplicate() : grads.get(j).add(gradient));
+                    }
+                    sums.attach(manager);
+                    if (grads != null) {
+                        grads.attach(sub);
+                    }
+                    grads = sums;
+                }
+            }
+            if (stateGrads != null) {
+                stateGrads.close();
+            }
+        }
+
+        // The arrays computed from the gradients stay in `manager`, not in the one of the
+        // parameters
+        NDArray surrogate = grads.get(0).mul(parameters.get(0)).sum();
+        for (int j = 1; j < parameters.size(); j++) {
+            surrogate = surrogate.add(grads.get(j).mul(parameters.get(j)).sum());
+        }
+        grads.close();
+        return new NDList(surrogate, manager.create(loss)).addAll(state);
+    }
+}
@@ -0,0 +1,245 @@
+import ai.djl.Device;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.AbstractBlock;
+import ai.djl.nn.Activation;
+import ai.djl.nn.Parameter;
+import ai.djl.nn.core.Linear;
+import ai.djl.training.ParameterStore;
+import ai.djl.util.PairList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An output layer that predicts tokens with a hierarchical softmax.
+ *
+ * <p>Each internal node of a {@link HuffmanTree} has a weight vector and a bias. The probability of
+ * a token is the product, along its path from the root, of {@code sigmoid(score)} for the left
+ * branches and {@code sigmoid(-score)} for the right ones, where {@code score} is the dot product
+ * of the input with the weight of the node plus its bias. These probabilities sum to 1 over the
+ * vocabulary, so the loss of {@link #loss} is the exact negative log-likelihood, while it only
+ * costs O(log `vocabSize`) per token instead of O(`vocabSize`). It pays off with word-level
+ * vocabularies, for a few dozen characters the full softmax is faster.
+ *
+ * <p>{@link #forward} returns the log-probabilities of all the tokens, of shape (no. of inputs,
+ * `vocabSize`), for prediction. It walks the whole tree, so it is slower than a full softmax. As
+ * they are already normalized, they can be passed to {@code SoftmaxCrossEntropyLoss} like logits.
+ */
+public class HierarchicalSoftmax extends AbstractBlock {
+
+    private HuffmanTree tree;
+    private Parameter weight;
+    private Parameter bias;
+
+    // Node of each step of the paths, its sign (1 for the left branch, -1 for the right one,
+    // 0 past the end of the path), then the arrays of `levels` and the no. of nodes per level
+    private int[] pathNodes;
+    private float[] pathSigns;
+    private List<int[]> levels;
+    private int[] levelSizes;
+    private NDManager constants;
+    private NDList arrays;
+
+    /**
+     * Constructor for HierarchicalSoftmax.
+     *
+     * @param tree the tree of the vocabulary, see {@link HuffmanTree#fromVocab(Vocab)}
+     */
+    public HierarchicalSoftmax(HuffmanTree tree) {
+        this.tree = tree;
+        weight =
+                addParameter(
+                        Parameter.builder()
+                                .setName("weight")
+                                .setType(Parameter.Type.WEIGHT)
+                                .build());
+        bias =
+                addParameter(
+                        Parameter.builder().setName("bias").setType(Parameter.Type.BIAS).build());
+
+        int maxDepth = tree.getMaxDepth();
+        pathNodes = new int[tree.vocabSize * maxDepth];
+        pathSigns = new float[tree.vocabSize * maxDepth];
+        for (int token = 0; token < tree.vocabSize; token++) {
+            for (int i = 0; i < tree.paths[token].length; i++) {
+                pathNodes[token * maxDepth + i] = tree.paths[token][i];
+                pathSigns[token * maxDepth + i] = tree.codes[token][i] == 0 ? 1 : -1;
+            }
+        }
+        levels = levels();
+    }
+
+    public int getVocabSize() {
+        return tree.vocabSize;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void prepare(Shape[] inputShapes) {
+        Shape input = inputShapes[0];
+        weight.setShape(new Shape(tree.vocabSize - 1, input.get(input.dimension() - 1)));
+        bias.setShape(new Shape(tree.vocabSize - 1));
+    }
+
+    @Override
+    protected NDList forwardInternal(
+            ParameterStore ps, NDList inputs, boolean training, PairList<String, Object> params) {
+        // Shape of `X`: (no. of inputs, no. of hidden units)
+        NDArray X = inputs.get(0);
+        Device device = X.getDevice();
+        NDArray W = ps.getValue(weight, device, training);
+        NDArray b = ps.getValue(bias, device, training);
+        NDList constants = getArrays(device);
+        long numInputs = X.getShape().get(0);
+        // Scores of the internal nodes level by level, of shape (`vocabSize` - 1, no. of inputs),
+        // the nodes are along the first axis so that the rows of a level can be taken cheaply
+        NDIndex byLevel = new NDIndex("{}", constants.get(2));
+        NDList rows = new NDList(W.get(byLevel), b.get(byLevel));
+        // Results of operations on the parameters belong to their manager, release them with `X`
+        rows.attach(X.getManager());
+        NDArray scores = Linear.linear(rows.get(0), X, null).head().add(rows.get(1).reshape(-1, 1));
+        // log(sigmoid(score)) for the left child and log(sigmoid(-score)) for the right one
+        NDArray left = Activation.softPlus(scores.neg()).neg();
+        NDArray branches = NDArrays.stack(new NDList(left, left.sub(scores)), 1);
+
+        // Log-probabilities of reaching the nodes of a level, starting from the root
+        NDArray logProbs = X.getManager().zeros(new Shape(1, 1, numInputs));
+        NDList leaves = new NDList();
+        int start = 0;
+        for (int level = 0; level < levelSizes.length; level++) {
+            int end = start + levelSizes[level];
+            // Shape of `children`: (2 * no. of nodes of the level, no. of inputs), the left and
+            // the right child of each node side by side
+            NDArray children =
+                    branches.get(new NDIndex("{}:{}", start, end))
+                            .add(logProbs)
+                            .reshape(-1, numInputs);
+            NDArray internal = constants.get(3 + 2 * level);
+            NDArray leaf = constants.get(4 + 2 * level);
+            if (leaf.size() > 0) {
+                leaves.add(children.get(new NDIndex("{}", leaf)));
+            }
+            if (internal.size() > 0) {
+                logProbs = children.get(new NDIndex("{}", internal)).expandDims(1);
+            }
+            start = end;
+        }
+        // The leaves were collected level by level, put them back in the order of the tokens
+        NDArray order = constants.get(constants.size() - 1);
+        NDArray result = NDArrays.concat(leaves).get(new NDIndex("{}", order)).transpose();
+        return new NDList(result);
+    }
+
+    /**
+     * Returns the negative log-likelihood of {@code labels}, of shape (no. of inputs,), going
+     * through the nodes on the paths of the labels only.
+     *
+     * @param ps the parameter store
+     * @param X the inputs, of shape (no. of inputs, no. of hidden units)
+     * @param labels the token of each input
+     * @param training whether it is training
+     * @return the negative log-likelihood of each input
+     */
+    public NDArray loss(ParameterStore ps, NDArray X, NDArray labels, boolean training) {
+        if (!isInitialized()) {
+            initialize(ps.getManager(), DataType.FLOAT32, X.getShape());
+        }
+        Device device = X.getDevice();
+        NDArray W = ps.getValue(weight, device, training);
+        NDArray b = ps.getValue(bias, device, training);
+        NDList constants = getArrays(device);
+        long numInputs = X.getShape().get(0);
+
+        // Nodes on the paths of the labels and their signs, of shape (no. of inputs, maximum depth)
+        NDIndex paths = new NDIndex("{}", labels.toType(DataType.INT32, false));
+        NDList steps = new NDList(constants.get(0).get(paths), constants.get(1).get(paths));
+        steps.attach(X.getManager());
+        // The weights can be cast to half precision, see `MixedPrecision`
+        NDArray signs = steps.get(1).toType(W.getDataType(), false);
+        NDIndex flat = new NDIndex("{}", steps.get(0).reshape(-1));
+        // Shape of `scores`: (no. of inputs, maximum depth)
+        NDList rows = new NDList(W.get(flat), b.get(flat));
+        rows.attach(X.getManager());
+        NDArray scores =
+                rows.get(0)
+                        .reshape(numInputs, -1, W.getShape().get(1))
+                        .batchDot(X.expandDims(2))
+                        .reshape(numInputs, -1)
+                        .add(rows.get(1).reshape(numInputs, -1));
+        // -log(sigmoid(sign * score)), the steps past the end of a path have a sign of 0
+        return Activation.softPlus(scores.mul(signs).neg()).mul(signs.abs()).sum(new int[] {1});
+    }
+
+    /* The paths and the levels of the tree, on `device` */
+    private NDList getArrays(Device device) {
+        if (arrays != null && arrays.head().getDevice().equals(device)) {
+            return arrays;
+        }
+        if (constants != null) {
+            constants.close();
+        }
+        constants = NDManager.newBaseManager(device);
+        int maxDepth = tree.getMaxDepth();
+        arrays =
+                new NDList(
+                        constants.create(pathNodes, new Shape(tree.vocabSize, maxDepth)),
+                        constants.create(pathSigns, new Shape(tree.vocabSize, maxDepth)));
+        for (int[] level : levels) {
+            arrays.add(constants.create(level));
+        }
+        return arrays;
+    }
+
+    /*
+     * Walks the tree level by level. Returns the internal nodes in the order of the levels, then
+     * for each level the positions among the children of its nodes (left and right child of each
+     * node, side by side) of the nodes of the next level and of the tokens. Then the position of
+     * each token in the concatenation of the tokens of all the levels.
+     */
+    private List<int[]> levels() {
+        List<int[]> levels = new ArrayList<>();
+        levels.add(new int[tree.vocabSize - 1]);
+        List<Integer> sizes = new ArrayList<>();
+        int[] order = new int[tree.vocabSize];
+        int numNodes = 0;
+        int numLeaves = 0;
+        int[] nodes = {tree.vocabSize - 2};
+        while (nodes.length > 0) {
+            System.arraycopy(nodes, 0, levels.get(0), numNodes, nodes.length);
+            numNodes += nodes.length;
+            sizes.add(nodes.length);
+            List<Integer> internal = new ArrayList<>();
+            List<Integer> nextNodes = new ArrayList<>();
+            List<Integer> leaf = new ArrayList<>();
+            for (int i = 0; i < nodes.length; i++) {
+                for (int branch = 0; branch < 2; branch++) {
+                    int child = tree.children[nodes[i]][branch];
+                    if (child >= 0) {
+                        internal.add(2 * i + branch);
+                        nextNodes.add(child);
+                    } else {
+                        leaf.add(2 * i + branch);
+                        order[-child - 1] = numLeaves++;
+                    }
+                }
+            }
+            levels.add(internal.stream().mapToInt(Integer::intValue).toArray());
+            levels.add(leaf.stream().mapToInt(Integer::intValue).toArray());
+            nodes = nextNodes.stream().mapToInt(Integer::intValue).toArray();
+        }
+        levels.add(order);
+        levelSizes = sizes.stream().mapToInt(Integer::intValue).toArray();
+        return levels;
+    }
+
+    @Override
+    public Shape[] getOutputShapes(Shape[] inputShapes) {
+        return new Shape[] {new Shape(inputShapes[0].get(0), tree.vocabSize)};
+    }
+}
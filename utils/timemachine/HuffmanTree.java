@@ -0,0 +1,126 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A Huffman tree over the tokens of a vocabulary, for the hierarchical softmax.
+ *
+ * <p>The leaves are the token indices {@code 0} to {@code vocabSize - 1} and the internal nodes are
+ * numbered {@code 0} to {@code vocabSize - 2} in the order they are created, so the root is the
+ * last one. Frequent tokens get short paths, the average path length is close to the entropy of the
+ * token distribution in bits.
+ */
+public class HuffmanTree {
+
+    public int vocabSize;
+    // Internal nodes from the root to the parent of each token
+    public int[][] paths;
+    // Branch taken at each node of `paths`, 0 for the left child and 1 for the right one
+    public int[][] codes;
+    // For each internal node, its children, a child `c` below 0 is the token `-c - 1`
+    public int[][] children;
+
+    /**
+     * Builds the tree of the given token frequencies.
+     *
+     * @param freqs the frequency of each token, at least 2 tokens
+     */
+    public HuffmanTree(long[] freqs) {
+        vocabSize = freqs.length;
+        if (vocabSize < 2) {
+            throw new IllegalArgumentException("A Huffman tree needs at least 2 tokens");
+        }
+        int numNodes = vocabSize - 1;
+        // Parent of each internal node (-1 for the root) and the branch leading to it
+        int[] parents = new int[numNodes];
+        int[] branches = new int[numNodes];
+        children = new int[numNodes][2];
+        // Parent and branch of each token
+        int[] leafParents = new int[vocabSize];
+        int[] leafBranches = new int[vocabSize];
+
+        // Entries are {frequency, node}, where tokens are encoded like in `children`. Ties are
+        // broken by node so that the tree does not depend on the order of the queue
+        PriorityQueue<long[]> queue =
+                new PriorityQueue<>(
+                        (a, b) ->
+                                a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        for (int i = 0; i < vocabSize; i++) {
+            queue.add(new long[] {freqs[i], -i - 1});
+        }
+        for (int node = 0; node < numNodes; node++) {
+            long[] left = queue.poll();
+            long[] right = queue.poll();
+            long[][] pair = {left, right};
+            for (int branch = 0; branch < 2; branch++) {
+                int child = (int) pair[branch][1];
+                children[node][branch] = child;
+                if (child < 0) {
+                    leafParents[-child - 1] = node;
+                    leafBranches[-child - 1] = branch;
+                } else {
+                    parents[child] = node;
+                    branches[child] = branch;
+                }
+            }
+            queue.add(new long[] {left[0] + right[0], node});
+        }
+        parents[numNodes - 1] = -1;
+
+        paths = new int[vocabSize][];
+        codes = new int[vocabSize][];
+        int[] path = new int[vocabSize];
+        int[] code = new int[vocabSize];
+        for (int token = 0; token < vocabSize; token++) {
+            // Walk up to the root, then reverse
+            int depth = 0;
+            path[depth] = leafParents[token];
+            code[depth++] = leafBranches[token];
+            for (int node = leafParents[token]; parents[node] >= 0; node = parents[node]) {
+                path[depth] = parents[node];
+                code[depth++] = branches[node];
+            }
+            paths[token] = new int[depth];
+            codes[token] = new int[depth];
+            for (int i = 0; i < depth; i++) {
+                paths[token][i] = path[depth - 1 - i];
+                codes[token][i] = code[depth - 1 - i];
+            }
+        }
+    }
+
+    /**
+     * Builds the tree of the tokens of {@code vocab} from {@code vocab.tokenFreqs}. The tokens
+     * without a frequency, such as the unknown and the reserved tokens, count as appearing once.
+     */
+    public static HuffmanTree fromVocab(Vocab vocab) {
+        long[] freqs = new long[vocab.length()];
+        Arrays.fill(freqs, 1);
+        for (Map.Entry<String, Integer> entry : vocab.tokenFreqs) {
+            Integer idx = vocab.tokenToIdx.get(entry.getKey());
+            if (idx != null) {
+                freqs[idx] = Math.max(1, entry.getValue());
+            }
+        }
+        return new HuffmanTree(freqs);
+    }
+
+    public int getMaxDepth() {
+        int max = 0;
+        for (int[] path : paths) {
+            max = Math.max(max, path.length);
+        }
+        return max;
+    }
+
+    /* Average number of nodes on the path of a token, weighted by `freqs` */
+    public double averageDepth(long[] freqs) {
+        double sum = 0;
+        double total = 0;
+        for (int i = 0; i < vocabSize; i++) {
+            sum += (double) freqs[i] * paths[i].length;
+            total += freqs[i];
+        }
+        return sum / total;
+    }
+}
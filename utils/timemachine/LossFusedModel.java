@@ -0,0 +1,32 @@
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.training.ParameterStore;
+import ai.djl.training.loss.Loss;
+
+/**
+ * A language model that can compute its training loss together with its forward pass, so that
+ * {@code TimeMachine.trainEpochCh8} does not have to keep all of its outputs.
+ */
+public interface LossFusedModel {
+
+    /* Whether `forwardLoss` should be used for training instead of the outputs of the model */
+    boolean isLossFused();
+
+    /**
+     * Computes the mean loss of the outputs with {@code labels}.
+     *
+     * @param parameterStore the parameter store
+     * @param inputs the token indices, then the state if there is one
+     * @param labels the labels of the outputs, in the order of the outputs of the model
+     * @param loss the loss function, models that fuse their output layer with a softmax
+     *     cross-entropy loss ignore it
+     * @param training whether it is training
+     * @return the array to call backward on, the loss, then the state
+     */
+    NDList forwardLoss(
+            ParameterStore parameterStore,
+            NDList inputs,
+            NDArray labels,
+            Loss loss,
+            boolean training);
+}
@@ -0,0 +1,306 @@
+import ai.djl.Device;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.nn.AbstractBlock;
+import ai.djl.nn.Parameter;
+import ai.djl.nn.core.Linear;
+import ai.djl.training.ParameterStore;
+import ai.djl.training.loss.Loss;
+import ai.djl.training.loss.SoftmaxCrossEntropyLoss;
+import ai.djl.util.Pair;
+
+/**
+ * An {@link RNNModel} that computes its training loss together with its forward pass, see {@link
+ * LossFusedModel}: with a chunked cross-entropy, a {@link HierarchicalSoftmax} output layer, or
+ * checkpointed time steps.
+ */
+public class LossFusedRNNModel<T extends AbstractBlock> extends RNNModel<T>
+        implements LossFusedModel {
+
+    private static final Loss LOSS = new SoftmaxCrossEntropyLoss();
+
+    private int lossChunkSize;
+    private int checkpointSteps;
+    private HierarchicalSoftmax output;
+
+    public LossFusedRNNModel(T rnnLayer, int vocabSize) {
+        super(rnnLayer, vocabSize);
+    }
+
+    /* An LossFusedRNNModel whose inputs go through an embedding, see `RNNModel` */
+    public LossFusedRNNModel(T rnnLayer, int vocabSize, int embedSize) {
+        super(rnnLayer, vocabSize, embedSize);
+    }
+
+    /**
+     * Constructor for a LossFusedRNNModel whose output layer is a {@link HierarchicalSoftmax}.
+     *
+     * <p>{@link #forward} still returns one row per token of the vocabulary, the log-probabilities
+     * of the tokens, so the perplexity and the predictions are exact. {@link #forwardLoss} only
+     * goes through the nodes on the paths of the labels.
+     *
+     * @param rnnLayer the rnn layer, already initialized
+     * @param output the output layer
+     */
+    public LossFusedRNNModel(T rnnLayer, HierarchicalSoftmax output) {
+        super(rnnLayer, output.getVocabSize(), "output", output);
+        this.output = output;
+    }
+
+    /**
+     * Sets the number of classes per block of {@link #forwardLoss}, 0 to compute the loss from the
+     * full logits.
+     */
+    public void setLossChunkSize(int lossChunkSize) {
+        this.lossChunkSize = lossChunkSize;
+    }
+
+    public int getLossChunkSize() {
+        return lossChunkSize;
+    }
+
+    /**
+     * Sets the number of time steps between two states saved by {@link #forwardLoss}, 0 to keep the
+     * activations of all the time steps. The steps in between are computed again during backward,
+     * see {@link CheckpointedUnroll}.
+     */
+    public void setCheckpointSteps(int checkpointSteps) {
+        this.checkpointSteps = checkpointSteps;
+    }
+
+    public int getCheckpointSteps() {
+        return checkpointSteps;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isLossFused() {
+        return lossChunkSize > 0 || output != null || checkpointSteps > 0;
+    }
+
+    /**
+     * Computes the mean softmax cross-entropy loss of the outputs with {@code labels}.
+     *
+     * <p>With a loss chunk size, the (no. of outputs, `vocabSize`) logits are never computed: the
+     * output layer is applied to blocks of {@link #getLossChunkSize()} classes. A first pass
+     * accumulates the log-sum-exp of the logits of each output with a running maximum, a second
+     * pass computes the exact gradients of the loss block by block. The blocks are computed outside
+     * of the autograd graph, the gradients are then passed on by a surrogate whose gradients with
+     * respect to the outputs of the rnn layer and to the parameters of the output layer are the
+     * ones computed. With a {@link HierarchicalSoftmax} output layer, the surrogate is the loss of
+     * {@link HierarchicalSoftmax#loss} itself.
+     *
+     * <p>With checkpoint steps, the time steps are unrolled in segments of {@link
+     * #getCheckpointSteps()} steps and only the states between the segments are kept for backward,
+     * see {@link CheckpointedUnroll}. Nothing is kept for backward when not training, the steps are
+     * then unrolled at once.
+     *
+     * @param parameterStore the parameter store
+     * @param inputs the token indices and the state
+     * @param labels the labels of the outputs, in the order of the outputs of {@link #forward}
+     * @param training whether it is training
+     * @return the surrogate to call backward on, the loss, then the state
+     */
+    public NDList forwardLoss(
+            ParameterStore parameterStore, NDList inputs, NDArray labels, boolean training) {
+        if (checkpointSteps <= 0 || !training) {
+            NDList result = forwardRnn(parameterStore, inputs, training);
+            return outputLoss(parameterStore, result.get(0), labels, training)
+                    .addAll(result.subNDList(1));
+        }
+        NDArray X = inputs.get(0);
+        long batchSize = X.getShape().get(0);
+        long numSteps = X.getShape().get(1);
+        // The parameters of the output layer are needed before it runs for the first time
+        initializeOutput(parameterStore.getManager(), DataType.FLOAT32);
+        int numSegments = (int) ((numSteps + checkpointSteps - 1) / checkpointSteps);
+        return CheckpointedUnroll.run(
+                numSegments,
+                inputs.subNDList(1),
+                new NDList(X, labels),
+                () -> {
+                    NDList params = new NDList();
+                    for (Pair<String, Parameter> pair : getParameters()) {
+                        params.add(pair.getValue().getArray());
+                    }
+                    return params;
+                },
+                (segment, state, withLoss) -> {
+                    long from = (long) segment * checkpointSteps;
+                    long to = Math.min(from + checkpointSteps, numSteps);
+                    NDList segmentInputs =
+                            new NDList(X.get(new NDIndex(":, {}:{}", from, to))).addAll(state);
+                    NDList result = forwardRnn(parameterStore, segmentInputs, training);
+                    if (!withLoss) {
+                        return result.subNDList(1);
+                    }
+                    // Weighted by the share of the time steps in the segment, so that the
+                    // losses of the segments add up to the mean loss
+                    NDArray y = labels.get(new NDIndex("{}:{}", from * batchSize, to * batchSize));
+                    float weight = (float) (to - from) / numSteps;
+                    NDList losses = outputLoss(parameterStore, result.get(0), y, training);
+                    return new NDList(losses.get(0).mul(weight), losses.get(1).mul(weight))
+                            .addAll(result.subNDList(1));
+                });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public NDList forwardLoss(
+            ParameterStore parameterStore,
+            NDList inputs,
+            NDArray labels,
+            Loss loss,
+            boolean training) {
+        return forwardLoss(parameterStore, inputs, labels, training);
+    }
+
+    /* The array to call backward on and the mean loss of the outputs `H` of the rnn layer */
+    private NDList outputLoss(
+            ParameterStore parameterStore, NDArray H, NDArray labels, boolean training) {
+        AbstractBlock dense = getOutputLayer();
+        if (output != null) {
+            NDArray loss = output.loss(parameterStore, H, labels, training).mean();
+            return new NDList(loss, loss);
+        }
+        if (lossChunkSize <= 0) {
+            NDArray logits = dense.forward(parameterStore, new NDList(H), training).head();
+            NDArray loss = LOSS.evaluate(new NDList(labels), new NDList(logits)).mean();
+            return new NDList(loss, loss);
+        }
+        if (!dense.isInitialized()) {
+            dense.initialize(parameterStore.getManager(), DataType.FLOAT32, H.getShape());
+        }
+        Device device = H.getDevice();
+        NDArray W = parameterStore.getValue(dense.getParameters().get("weight"), device, training);
+        NDArray b = parameterStore.getValue(dense.getParameters().get("bias"), device, training);
+        NDList grads = new NDList();
+        NDArray loss = chunkedCrossEntropy(H, W, b, labels, lossChunkSize, grads);
+        // The gradients go first so that the products are not attached to the manager of the
+        // parameters
+        NDArray surrogate =
+                H.mul(grads.get(0))
+                        .sum()
+                        .add(grads.get(1).mul(W).sum())
+                        .add(grads.get(2).mul(b).sum());
+        grads.close();
+        return new NDList(surrogate, loss);
+    }
+
+    /**
+     * Returns the mean cross-entropy of the logits {@code H.dot(W.transpose()).add(b)} with {@code
+     * labels}, computed over blocks of {@code chunkSize} classes, and adds its gradients with
+     * respect to {@code H}, {@code W} and {@code b} to {@code grads}.
+     */
+    private static NDArray chunkedCrossEntropy(
+            NDArray H, NDArray W, NDArray b, NDArray labels, int chunkSize, NDList grads) {
+        NDManager manager = H.getManager();
+        long numOutputs = H.getShape().get(0);
+        long numClasses = W.getShape().get(0);
+        // MXNet still records the operations on the arrays out of `stopGradient`, which would
+        // keep every block alive until backward
+        RecordingPause pause = RecordingPause.pause(manager);
+        try (NDManager sub = manager.newSubManager()) {
+            NDList inputs =
+                    new NDList(
+                            H.stopGradient(),
+                            W.stopGradient(),
+                            b.stopGradient(),
+                            labels.toType(DataType.INT32, true));
+            inputs.attach(sub);
+            NDArray h = inputs.get(0);
+            NDArray y = inputs.get(3);
+
+            // Log-sum-exp of the logits of each block
+            NDList blockLse = new NDList();
+            for (long start = 0; start < numClasses; start += chunkSize) {
+                long end = Math.min(start + chunkSize, numClasses);
+                try (NDManager block = sub.newSubManager()) {
+                    inputs.tempAttach(block);
+                    NDArray lse = logSumExp(logits(inputs, start, end));
+                    lse.attach(sub);
+                    blockLse.add(lse);
+                }
+            }
+            // Shape of `lse`: (no. of outputs, 1)
+            NDArray lse =
+                    blockLse.size() == 1
+                            ? blockLse.head()
+                            : logSumExp(NDArrays.concat(blockLse, 1));
+            NDArray target =
+                    h.mul(inputs.get(1).get(new NDIndex("{}", y)))
+                            .sum(new int[] {1}, true)
+                            .add(inputs.get(2).get(new NDIndex("{}", y)).reshape(-1, 1));
+            NDArray loss = lse.sub(target).mean();
+            // `Linear.linear` multiplies by the transpose of its weight, it is faster than `dot`
+            NDArray hT = h.transpose();
+            inputs.add(hT);
+
+            // Gradient of the mean loss with respect to the logits of a block:
+            // (softmax - one-hot labels) / no. of outputs, where the softmax of the block is
+            // rescaled to the log-sum-exp of all the classes
+            NDArray gradH = sub.zeros(h.getShape(), h.getDataType());
+            NDList gradW = new NDList();
+            NDList gradB = new NDList();
+            int index = 0;
+            for (long start = 0; start < numClasses; start += chunkSize) {
+                long end = Math.min(start + chunkSize, numClasses);
+                NDArray scale = blockLse.get(index++).sub(lse).exp().div(numOutputs);
+                try (NDManager block = sub.newSubManager()) {
+                    inputs.tempAttach(block);
+                    gradH.attach(block);
+                    scale.attach(block);
+                    NDArray logits = logits(inputs, start, end);
+                    // Labels out of the block get all-zero one-hot vectors
+                    NDArray oneHot =
+                            y.sub(start)
+                                    .oneHot(
+                                            (int) (end - start),
+                                            1f / numOutputs,
+                                            0f,
+                                            logits.getDataType());
+                    NDArray dLogits = logits.softmax(1).mul(scale).sub(oneHot);
+                    NDArray weight = inputs.get(1).get(new NDIndex("{}:{}", start, end));
+                    NDArray blockGradW = Linear.linear(dLogits.transpose(), hT, null).head();
+                    NDArray blockGradB = dLogits.sum(new int[] {0});
+                    NDArray newGradH =
+                            gradH.add(Linear.linear(dLogits, weight.transpose(), null).head());
+                    blockGradW.attach(sub);
+                    blockGradB.attach(sub);
+                    newGradH.attach(sub);
+                    gradW.add(blockGradW);
+                    gradB.add(blockGradB);
+                    gradH = newGradH;
+                }
+            }
+            NDList results =
+                    new NDList(
+                            loss,
+                            gradH,
+                            gradW.size() == 1 ? gradW.head() : NDArrays.concat(gradW),
+                            gradB.size() == 1 ? gradB.head() : NDArrays.concat(gradB));
+            results.attach(manager);
+            grads.addAll(results.subNDList(1));
+            return loss;
+        } finally {
+            pause.close();
+        }
+    }
+
+    /* Log-sum-exp of the rows of `X`, of shape (no. of rows, 1) */
+    private static NDArray logSumExp(NDArray X) {
+        NDArray max = X.max(new int[] {1}, true);
+        return X.sub(max).exp().sum(new int[] {1}, true).log().add(max);
+    }
+
+    /* Logits of the classes from `start` to `end`, `inputs` holds the outputs, weight and bias */
+    private static NDArray logits(NDList inputs, long start, long end) {
+        NDIndex classes = new NDIndex("{}:{}", start, end);
+        return Linear.linear(inputs.get(0), inputs.get(1).get(classes), inputs.get(2).get(classes))
+                .head();
+    }
+}
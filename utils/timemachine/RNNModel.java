@@ -1,9 +1,11 @@
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
 import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
 import ai.djl.nn.AbstractBlock;
+import ai.djl.nn.Parameter;
 import ai.djl.nn.core.Linear;
 import ai.djl.training.ParameterStore;
 import ai.djl.util.PairList;
@@ -11,21 +13,61 @@ import ai.djl.util.PairList;
 public class RNNModel<T extends AbstractBlock> extends AbstractBlock {
 
     private T rnnLayer;
-    private Linear dense;
+    private AbstractBlock dense;
     private int vocabSize;
+    private Parameter embedding;
 
     public RNNModel(T rnnLayer, int vocabSize) {
+        this(rnnLayer, vocabSize, "linear", Linear.builder().setUnits(vocabSize).build());
+    }
+
+    /**
+     * Constructor for an RNNModel whose inputs go through an embedding.
+     *
+     * <p>The rnn layer receives the rows of a (`vocabSize`, {@code embedSize}) weight at the token
+     * indices instead of one-hot vectors. It is the same as a linear layer without bias applied to
+     * the one-hot vectors, without the (`numSteps`, `batchSize`, `vocabSize`) array. The rnn layer
+     * must be initialized for inputs of {@code embedSize} features.
+     *
+     * @param rnnLayer the rnn layer, already initialized
+     * @param vocabSize the size of the vocabulary
+     * @param embedSize the number of features of each token
+     */
+    public RNNModel(T rnnLayer, int vocabSize, int embedSize) {
+        this(rnnLayer, vocabSize);
+        embedding =
+                addParameter(
+                        Parameter.builder()
+                                .setName("embedding")
+                                .setType(Parameter.Type.WEIGHT)
+                                .optShape(new Shape(vocabSize, embedSize))
+                                .build());
+    }
+
+    /* For subclasses with another output layer, added as the child block `name` */
+    protected RNNModel(T rnnLayer, int vocabSize, String name, AbstractBlock output) {
         this.rnnLayer = rnnLayer;
         this.addChildBlock("rnn", rnnLayer);
         this.vocabSize = vocabSize;
-        this.dense = Linear.builder().setUnits(vocabSize).build();
-        this.addChildBlock("linear", dense);
+        this.dense = output;
+        this.addChildBlock(name, output);
     }
 
-    /** {@inheritDoc} */
+    /**
+     * Initializes the layers that are not initialized yet, for token indices of shape (`batchSize`,
+     * `numSteps`). The rnn layer is usually initialized already, the output layer would otherwise
+     * only be initialized by the first forward pass.
+     */
     @Override
     public void initializeChildBlocks(NDManager manager, DataType dataType, Shape... inputShapes) {
-        /* rnnLayer is already initialized so we don't have to do anything here, just override it.*/
+        if (!rnnLayer.isInitialized()) {
+            long features = embedding == null ? vocabSize : embedding.getShape().get(1);
+            rnnLayer.initialize(
+                    manager,
+                    dataType,
+                    new Shape(inputShapes[0].get(1), inputShapes[0].get(0), features));
+        }
+        initializeOutput(manager, dataType);
     }
 
     @Override
@@ -34,19 +76,69 @@ public class RNNModel<T extends AbstractBlock> extends AbstractBlock {
             NDList inputs,
             boolean training,
             PairList<String, Object> params) {
-        NDArray X = inputs.get(0).transpose().oneHot(vocabSize);
+        NDList result = forwardRnn(parameterStore, inputs, training);
+        NDList Y = dense.forward(parameterStore, new NDList(result.get(0)), training);
+        return new NDList(Y.get(0)).addAll(result.subNDList(1));
+    }
+
+    /* The output layer */
+    protected AbstractBlock getOutputLayer() {
+        return dense;
+    }
+
+    public int getVocabSize() {
+        return vocabSize;
+    }
+
+    /* Initializes the output layer if it is not, for the outputs of the rnn layer */
+    protected void initializeOutput(NDManager manager, DataType dataType) {
+        if (!dense.isInitialized()) {
+            Shape[] shapes = rnnLayer.getOutputShapes(new Shape[] {new Shape(1, 1, vocabSize)});
+            dense.initialize(manager, dataType, new Shape(1, shapes[0].tail()));
+        }
+    }
+
+    /* Outputs of the rnn layer, of shape (no. of outputs, no. of hidden units), then the state */
+    protected NDList forwardRnn(ParameterStore parameterStore, NDList inputs, boolean training) {
+        NDArray X = inputs.get(0).transpose();
+        if (embedding == null) {
+            // The parameter store can give the parameters in another data type, see
+            // `MixedPrecision`, the one-hot inputs take the data type of the rnn layer
+            if (!rnnLayer.isInitialized()) {
+                rnnLayer.initialize(
+                        parameterStore.getManager(), DataType.FLOAT32, X.getShape().add(vocabSize));
+            }
+            Parameter first = rnnLayer.getParameters().valueAt(0);
+            NDArray value = parameterStore.getValue(first, X.getDevice(), training);
+            X = X.oneHot(vocabSize, value.getDataType());
+        } else {
+            // Take the rows of the embedding at the token indices
+            NDArray W = parameterStore.getValue(embedding, X.getDevice(), training);
+            NDArray indices = X.reshape(-1).toType(DataType.INT32, false);
+            NDArray rows = W.get(new NDIndex("{}", indices));
+            // Results of operations on `W` belong to its manager, release them with `X` instead
+            rows.attach(X.getManager());
+            X = rows.reshape(X.getShape().add(W.getShape().get(1)));
+        }
+        DataType dataType = X.getDataType();
         inputs.set(0, X);
+        for (int i = 1; i < inputs.size(); i++) {
+            inputs.set(i, inputs.get(i).toType(dataType, false));
+        }
+        if (inputs.size() == 1 && dataType != DataType.FLOAT32) {
+            // The rnn layer would begin with a float32 state
+            Shape[] shapes = rnnLayer.getOutputShapes(new Shape[] {X.getShape()});
+            for (int i = 1; i < shapes.length; i++) {
+                inputs.add(X.getManager().zeros(shapes[i], dataType));
+            }
+        }
         NDList result = rnnLayer.forward(parameterStore, inputs, training);
         NDArray Y = result.get(0);
         NDList state = result.subNDList(1);
 
         int shapeLength = Y.getShape().getShape().length;
-        NDList output =
-                dense.forward(
-                        parameterStore,
-                        new NDList(Y.reshape(new Shape(-1, Y.getShape().get(shapeLength - 1)))),
-                        training);
-        return new NDList(output.get(0)).addAll(state);
+        return new NDList(Y.reshape(new Shape(-1, Y.getShape().get(shapeLength - 1))))
+                .addAll(state);
     }
 
     /* We won't implement this since we won't be using it but it's required as part of an AbstractBlock  */
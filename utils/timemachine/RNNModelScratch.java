@@ -1,6 +1,8 @@
 import ai.djl.Device;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.DataType;
 import ai.djl.util.Pair;
 
 /** An RNN Model implemented from scratch. */
@@ -11,6 +13,7 @@ public class RNNModelScratch {
     public NDList params;
     public Functions.TriFunction<Integer, Integer, Device, NDList> initState;
     public Functions.TriFunction<NDArray, NDList, NDList, Pair<NDArray, NDList>> forwardFn;
+    public boolean indexInput;
 
     public RNNModelScratch(
             int vocabSize,
@@ -19,19 +22,75 @@ public class RNNModelScratch {
             Functions.TriFunction<Integer, Integer, Device, NDList> getParams,
             Functions.TriFunction<Integer, Integer, Device, NDList> initRNNState,
             Functions.TriFunction<NDArray, NDList, NDList, Pair<NDArray, NDList>> forwardFn) {
+        this(vocabSize, numHiddens, device, getParams, initRNNState, forwardFn, false);
+    }
+
+    /**
+     * Constructor for RNNModelScratch.
+     *
+     * <p>With {@code indexInput}, {@code forwardFn} receives the token indices, of shape
+     * (`numSteps`, `batchSize`), instead of their one-hot encoding. It then takes the rows of the
+     * input weights with {@link #embed(NDArray, NDArray)} where it would multiply the one-hot
+     * inputs by them, which gives the same result without the (`numSteps`, `batchSize`,
+     * `vocabSize`) array and its matrix multiplications.
+     *
+     * @param vocabSize the size of the vocabulary
+     * @param numHiddens the number of hidden units
+     * @param device the device of the parameters
+     * @param getParams creates the parameters
+     * @param initRNNState creates the initial state
+     * @param forwardFn computes the outputs and the new state
+     * @param indexInput whether {@code forwardFn} takes token indices instead of one-hot vectors
+     */
+    public RNNModelScratch(
+            int vocabSize,
+            int numHiddens,
+            Device device,
+            Functions.TriFunction<Integer, Integer, Device, NDList> getParams,
+            Functions.TriFunction<Integer, Integer, Device, NDList> initRNNState,
+            Functions.TriFunction<NDArray, NDList, NDList, Pair<NDArray, NDList>> forwardFn,
+            boolean indexInput) {
         this.vocabSize = vocabSize;
         this.numHiddens = numHiddens;
         this.params = getParams.apply(vocabSize, numHiddens, device);
         this.initState = initRNNState;
         this.forwardFn = forwardFn;
+        this.indexInput = indexInput;
     }
 
     public Pair<NDArray, NDList> forward(NDArray X, NDList state) {
-        X = X.transpose().oneHot(vocabSize);
-        return forwardFn.apply(X, state, params);
+        return forward(X, state, params);
+    }
+
+    /**
+     * Computes the outputs with other values of the parameters, such as copies in half precision.
+     * The one-hot inputs and the state are given the data type of the parameters.
+     *
+     * @param X the inputs, of shape (`batchSize`, `numSteps`)
+     * @param state the state
+     * @param values the values of the parameters, in the order of {@link #params}
+     * @return the outputs and the new state
+     */
+    public Pair<NDArray, NDList> forward(NDArray X, NDList state, NDList values) {
+        DataType dataType = values.head().getDataType();
+        X = indexInput ? X.transpose() : X.transpose().oneHot(vocabSize, dataType);
+        NDList castState = new NDList();
+        for (NDArray s : state) {
+            castState.add(s.getDataType() == dataType ? s : s.toType(dataType, false));
+        }
+        return forwardFn.apply(X, castState, values);
     }
 
     public NDList beginState(int batchSize, Device device) {
         return initState.apply(batchSize, numHiddens, device);
     }
+
+    /* The rows of `W` at the token indices `X`, same as `X.oneHot(vocabSize).dot(W)` */
+    public static NDArray embed(NDArray X, NDArray W) {
+        NDArray indices = X.reshape(-1).toType(DataType.INT32, false);
+        NDArray rows = W.get(new NDIndex("{}", indices));
+        // Results of operations on `W` belong to its manager, release them with `X` instead
+        rows.attach(X.getManager());
+        return rows.reshape(X.getShape().addAll(W.getShape().slice(1)));
+    }
 }
@@ -4,6 +4,7 @@ import ai.djl.engine.Engine;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
 import ai.djl.nn.AbstractBlock;
 import ai.djl.nn.Parameter;
@@ -165,39 +166,50 @@ public class TimeMachine {
             boolean useRandomIter,
             NDManager manager)
             throws IOException, TranslateException {
-        SoftmaxCrossEntropyLoss loss = new SoftmaxCrossEntropyLoss();
-        Animator animator = new Animator();
+        trainCh8(net, dataset, vocab, lr, numEpochs, device, useRandomIter, manager, null);
+    }
 
-        Functions.voidTwoFunction<Integer, NDManager> updater;
-        if (net instanceof RNNModelScratch) {
-            RNNModelScratch castedNet = (RNNModelScratch) net;
-            updater =
-                    (batchSize, subManager) ->
-                            Training.sgd(castedNet.params, lr, batchSize, subManager);
-        } else {
-            // Already initialized net
-            AbstractBlock castedNet = (AbstractBlock) net;
-            Model model = Model.newInstance("model");
-            model.setBlock(castedNet);
-
-            Tracker lrt = Tracker.fixed(lr);
-            Optimizer sgd = Optimizer.sgd().setLearningRateTracker(lrt).build();
-
-            DefaultTrainingConfig config =
-                    new DefaultTrainingConfig(loss)
-                            .optOptimizer(sgd) // Optimizer (loss function)
-                            .optInitializer(
-                                    new NormalInitializer(0.01f),
-                                    Parameter.Type.WEIGHT) // setting the initializer
-                            .optDevices(
-                                    manager.getEngine()
-                                            .getDevices(1)) // setting the number of GPUs needed
-                            .addEvaluator(new Accuracy()) // Model Accuracy
-                            .addTrainingListeners(TrainingListener.Defaults.logging()); // Logging
-
-            Trainer trainer = model.newTrainer(config);
-            updater = (batchSize, subManager) -> trainer.step();
+    /** Train a model and export the metrics of every epoch to `recorder` if it is not null. */
+    public static void trainCh8(
+            Object net,
+            RandomAccessDataset dataset,
+            Vocab vocab,
+            int lr,
+            int numEpochs,
+            Device device,
+            boolean useRandomIter,
+            NDManager manager,
+            MetricsRecorder recorder)
+            throws IOException, TranslateException {
+        trainCh8(
+                net, dataset, vocab, lr, numEpochs, device, useRandomIter, manager, recorder, null);
+    }
+
+    /**
+     * Train a model, in mixed precision if `precision` is not null. Falls back to float32 when the
+     * engine cannot compute in the data type of `precision` on `device`.
+     */
+    public static void trainCh8(
+            Object net,
+            RandomAccessDataset dataset,
+            Vocab vocab,
+            int lr,
+            int numEpochs,
+            Device device,
+            boolean useRandomIter,
+            NDManager manager,
+            MetricsRecorder recorder,
+            MixedPrecision precision)
+            throws IOException, TranslateException {
+        if (precision != null && !precision.isSupported(manager)) {
+            System.out.format(
+                    "%s is not supported on %s, training in float32%n",
+                    precision.getDataType(), device);
+            precision = null;
         }
+        SoftmaxCrossEntropyLoss loss = new SoftmaxCrossEntropyLoss();
+        Animator animator = new Animator();
+        Functions.voidTwoFunction<Integer, NDManager> updater = newUpdater(net, loss, lr, manager);
 
         Function<String, String> predict =
                 (prefix) -> predictCh8(prefix, 50, net, vocab, device, manager);
@@ -206,9 +218,27 @@ public class TimeMachine {
         double speed = 0.0;
         for (int epoch = 0; epoch < numEpochs; epoch++) {
             Pair<Double, Double> pair =
-                    trainEpochCh8(net, dataset, loss, updater, device, useRandomIter, manager);
+                    trainEpochCh8(
+                            net,
+                            dataset,
+                            loss,
+                            updater,
+                            device,
+                            useRandomIter,
+                            manager,
+                            recorder,
+                            precision);
             ppl = pair.getKey();
             speed = pair.getValue();
+            if (recorder != null) {
+                recorder.record("loss", Math.log(ppl));
+                recorder.record("perplexity", ppl);
+                recorder.record("tokens_per_sec", speed);
+                recorder.recordMemory(manager);
+                recorder.endEpoch();
+            }
+            TrainingProfiler.report(epoch + 1);
+            MemoryAuditor.epoch(epoch + 1, manager);
             if ((epoch + 1) % 10 == 0) {
                 animator.add(epoch + 1, (float) ppl, "ppl");
                 animator.show();
@@ -216,10 +246,47 @@ public class TimeMachine {
         }
         System.out.format(
                 "perplexity: %.1f, %.1f tokens/sec on %s%n", ppl, speed, device.toString());
+        if (precision != null) {
+            System.out.format(
+                    "%s, loss scale: %.0f, %d steps skipped%n",
+                    precision.getDataType(), precision.getLossScale(), precision.getNumSkipped());
+        }
         System.out.println(predict.apply("time traveller"));
         System.out.println(predict.apply("traveller"));
     }
 
+    /* Updates the parameters of `net` with SGD, or with a trainer for a block */
+    public static Functions.voidTwoFunction<Integer, NDManager> newUpdater(
+            Object net, Loss loss, int lr, NDManager manager) {
+        if (net instanceof RNNModelScratch) {
+            RNNModelScratch castedNet = (RNNModelScratch) net;
+            return (batchSize, subManager) ->
+                    Training.sgd(castedNet.params, lr, batchSize, subManager);
+        }
+        // Already initialized net
+        AbstractBlock castedNet = (AbstractBlock) net;
+        Model model = Model.newInstance("model");
+        model.setBlock(castedNet);
+
+        Tracker lrt = Tracker.fixed(lr);
+        Optimizer sgd = Optimizer.sgd().setLearningRateTracker(lrt).build();
+
+        DefaultTrainingConfig config =
+                new DefaultTrainingConfig(loss)
+                        .optOptimizer(sgd) // Optimizer (loss function)
+                        .optInitializer(
+                                new NormalInitializer(0.01f),
+                                Parameter.Type.WEIGHT) // setting the initializer
+                        .optDevices(
+                                manager.getEngine()
+                                        .getDevices(1)) // setting the number of GPUs needed
+                        .addEvaluator(new Accuracy()) // Model Accuracy
+                        .addTrainingListeners(TrainingListener.Defaults.logging()); // Logging
+
+        Trainer trainer = model.newTrainer(config);
+        return (batchSize, subManager) -> trainer.step();
+    }
+
     /** Train a model within one epoch. */
     public static Pair<Double, Double> trainEpochCh8(
             Object net,
@@ -230,13 +297,51 @@ public class TimeMachine {
             boolean useRandomIter,
             NDManager manager)
             throws IOException, TranslateException {
+        return trainEpochCh8(net, dataset, loss, updater, device, useRandomIter, manager, null);
+    }
+
+    /** Train a model within one epoch, recording the time of every step to `recorder`. */
+    public static Pair<Double, Double> trainEpochCh8(
+            Object net,
+            RandomAccessDataset dataset,
+            Loss loss,
+            Functions.voidTwoFunction<Integer, NDManager> updater,
+            Device device,
+            boolean useRandomIter,
+            NDManager manager,
+            MetricsRecorder recorder)
+            throws IOException, TranslateException {
+        return trainEpochCh8(
+                net, dataset, loss, updater, device, useRandomIter, manager, recorder, null);
+    }
+
+    /**
+     * Train a model within one epoch. With `precision`, the forward and backward passes run on
+     * copies of the parameters in half precision, and the steps whose gradients overflow are
+     * skipped.
+     */
+    public static Pair<Double, Double> trainEpochCh8(
+            Object net,
+            RandomAccessDataset dataset,
+            Loss loss,
+            Functions.voidTwoFunction<Integer, NDManager> updater,
+            Device device,
+            boolean useRandomIter,
+            NDManager manager,
+            MetricsRecorder recorder,
+            MixedPrecision precision)
+            throws IOException, TranslateException {
         StopWatch watch = new StopWatch();
         watch.start();
         Accumulator metric = new Accumulator(2); // Sum of training loss, no. of tokens
 
+        MemoryAuditor.beginScope("trainEpochCh8", manager);
         try (NDManager childManager = manager.newSubManager()) {
             NDList state = null;
+            TrainingProfiler.start(manager);
+            long stepStart = System.nanoTime();
             for (Batch batch : dataset.getData(manager)) {
+                TrainingProfiler.stop(TrainingProfiler.DATA, manager, null);
                 NDArray X = batch.getData().head().toDevice(Functions.tryGpu(0), true);
                 X.attach(childManager);
                 NDArray Y = batch.getLabels().head().toDevice(Functions.tryGpu(0), true);
@@ -261,60 +366,131 @@ public class TimeMachine {
                 NDArray y = Y.transpose().reshape(new Shape(-1));
                 X = X.toDevice(device, false);
                 y = y.toDevice(device, false);
+                TrainingProfiler.stop(TrainingProfiler.TO_DEVICE, manager, X);
+                NDList params;
                 try (GradientCollector gc = Engine.getInstance().newGradientCollector()) {
-                    NDArray yHat;
-                    if (net instanceof RNNModelScratch) {
-                        Pair<NDArray, NDList> pairResult =
-                                ((RNNModelScratch) net).forward(X, state);
+                    NDArray yHat = null;
+                    NDArray l = null;
+                    // What backward is called on, the loss unless the output layer is fused with it
+                    NDArray objective = null;
+                    // Begin state when `state` is null
+                    NDList input = state == null ? new NDList(X) : new NDList(X).addAll(state);
+                    ParameterStore ps =
+                            precision == null
+                                    ? new ParameterStore(manager, false)
+                                    : precision.newParameterStore(manager);
+                    if (net instanceof LossFusedModel && ((LossFusedModel) net).isLossFused()) {
+                        // The outputs `yHat` are not kept for backward
+                        NDList result =
+                                ((LossFusedModel) net).forwardLoss(ps, input, y, loss, true);
+                        objective = result.get(0);
+                        l = result.get(1).toType(DataType.FLOAT32, false);
+                        state = result.subNDList(2);
+                    } else if (net instanceof RNNModelScratch) {
+                        RNNModelScratch castedNet = (RNNModelScratch) net;
+                        NDList values =
+                                precision == null
+                                        ? castedNet.params
+                                        : precision.cast(castedNet.params);
+                        Pair<NDArray, NDList> pairResult = castedNet.forward(X, state, values);
                         yHat = pairResult.getKey();
                         state = pairResult.getValue();
                     } else {
-                        NDList pairResult;
-                        if (state == null) {
-                            // Begin state
-                            pairResult =
-                                    ((AbstractBlock) net)
-                                            .forward(
-                                                    new ParameterStore(manager, false),
-                                                    new NDList(X),
-                                                    true);
-                        } else {
-                            pairResult =
-                                    ((AbstractBlock) net)
-                                            .forward(
-                                                    new ParameterStore(manager, false),
-                                                    new NDList(X).addAll(state),
-                                                    true);
-                        }
+                        NDList pairResult = ((AbstractBlock) net).forward(ps, input, true);
                         yHat = pairResult.get(0);
                         state = pairResult.subNDList(1);
                     }
+                    TrainingProfiler.stop(TrainingProfiler.FORWARD, manager, yHat);
+                    // The parameters of a block can be initialized by its first forward pass
+                    params = getParams(net);
 
-                    NDArray l = loss.evaluate(new NDList(y), new NDList(yHat)).mean();
-                    gc.backward(l);
+                    if (l == null) {
+                        // The loss is computed in float32 whatever the data type of the outputs
+                        yHat = yHat.toType(DataType.FLOAT32, false);
+                        l = loss.evaluate(new NDList(y), new NDList(yHat)).mean();
+                        objective = l;
+                    }
+                    TrainingProfiler.stop(TrainingProfiler.LOSS, manager, l);
+                    gc.backward(precision == null ? objective : precision.scale(objective));
+                    TrainingProfiler.stopGradients(TrainingProfiler.BACKWARD, manager, params);
                     metric.add(new float[] {l.getFloat() * y.size(), y.size()});
+                    TrainingProfiler.stop(TrainingProfiler.METRIC, manager, null);
+                }
+                // Skip the step if the gradients overflowed in half precision
+                if (precision == null || precision.unscale(params, childManager)) {
+                    gradClipping(net, 1, childManager);
+                    TrainingProfiler.stopGradients(TrainingProfiler.GRAD_CLIPPING, manager, params);
+                    updater.apply(1, childManager); // Since the `mean` function has been invoked
+                    TrainingProfiler.stopInPlace(TrainingProfiler.UPDATER, manager, params);
+                }
+                if (recorder != null) {
+                    long now = System.nanoTime();
+                    recorder.recordStep(now - stepStart);
+                    stepStart = now;
                 }
-                gradClipping(net, 1, childManager);
-                updater.apply(1, childManager); // Since the `mean` function has been invoked
             }
         }
+        MemoryAuditor.endScope("trainEpochCh8");
         return new Pair<>(Math.exp(metric.get(0) / metric.get(1)), metric.get(1) / watch.stop());
     }
 
+    /**
+     * Evaluate the perplexity of a model on `dataset`. Models trained with a fused loss compute the
+     * exact loss of the labels without the full outputs, the hierarchical softmax only goes through
+     * the nodes on the paths of the labels.
+     */
+    public static double perplexityCh8(
+            Object net, RandomAccessDataset dataset, Device device, NDManager manager)
+            throws IOException, TranslateException {
+        Loss loss = new SoftmaxCrossEntropyLoss();
+        Accumulator metric = new Accumulator(2); // Sum of loss, no. of tokens
+        try (NDManager childManager = manager.newSubManager()) {
+            NDList state = null;
+            for (Batch batch : dataset.getData(childManager)) {
+                NDArray X = batch.getData().head().toDevice(device, false);
+                NDArray y =
+                        batch.getLabels().head().transpose().reshape(-1).toDevice(device, false);
+                NDArray yHat = null;
+                float l = 0;
+                if (net instanceof RNNModelScratch) {
+                    RNNModelScratch castedNet = (RNNModelScratch) net;
+                    if (state == null) {
+                        state = castedNet.beginState((int) X.getShape().get(0), device);
+                    }
+                    Pair<NDArray, NDList> pair = castedNet.forward(X, state);
+                    yHat = pair.getKey();
+                    state = pair.getValue();
+                } else {
+                    NDList input = state == null ? new NDList(X) : new NDList(X).addAll(state);
+                    ParameterStore ps = new ParameterStore(childManager, false);
+                    if (net instanceof LossFusedModel && ((LossFusedModel) net).isLossFused()) {
+                        NDList result =
+                                ((LossFusedModel) net).forwardLoss(ps, input, y, loss, false);
+                        l = result.get(1).getFloat();
+                        state = result.subNDList(2);
+                    } else {
+                        NDList result = ((AbstractBlock) net).forward(ps, input, false);
+                        yHat = result.get(0);
+                        state = result.subNDList(1);
+                    }
+                }
+                if (yHat != null) {
+                    l = loss.evaluate(new NDList(y), new NDList(yHat)).mean().getFloat();
+                }
+                metric.add(new float[] {l * y.size(), y.size()});
+            }
+        }
+        return Math.exp(metric.get(0) / metric.get(1));
+    }
+
     /** Clip the gradient. */
     public static void gradClipping(Object net, int theta, NDManager manager) {
         double result = 0;
-        NDList params;
-        if (net instanceof RNNModelScratch) {
-            params = ((RNNModelScratch) net).params;
-        } else {
-            params = new NDList();
-            for (Pair<String, Parameter> pair : ((AbstractBlock) net).getParameters()) {
-                params.add(pair.getValue().getArray());
-            }
-        }
+        NDList params = getParams(net);
         for (NDArray p : params) {
-            NDArray gradient = p.getGradient().stopGradient();
+            // `getGradient` returns a new handle every time, attach it to `manager` so that it is
+            // released together with the other arrays of this step
+            NDArray gradient = p.getGradient();
             gradient.attach(manager);
             result += gradient.pow(2).sum().getFloat();
         }
@@ -322,8 +498,21 @@ public class TimeMachine {
         if (norm > theta) {
             for (NDArray param : params) {
                 NDArray gradient = param.getGradient();
+                gradient.attach(manager);
                 gradient.muli(theta / norm);
             }
         }
     }
+
+    /* The parameters of a model, either an `RNNModelScratch` or a block */
+    public static NDList getParams(Object net) {
+        if (net instanceof RNNModelScratch) {
+            return ((RNNModelScratch) net).params;
+        }
+        NDList params = new NDList();
+        for (Pair<String, Parameter> pair : ((AbstractBlock) net).getParameters()) {
+            params.add(pair.getValue().getArray());
+        }
+        return params;
+    }
 }
@@ -79,14 +79,19 @@ public class TimeMachineDataset extends RandomAccessDataset {
         for (int i = 0; i < numSteps * numBatches; i += numSteps) {
             NDArray X = Xs.get(new NDIndex(":, {}:{}", i, i + numSteps));
             NDArray Y = Ys.get(new NDIndex(":, {}:{}", i, i + numSteps));
-            // Temp variables to be able to detach NDArray which will be replaced
+            // Temp variables to be able to close the NDArrays which will be replaced. A detached
+            // NDArray is no longer owned by any manager, so its memory would never be released
             NDArray temp = this.data;
-            NDArray temp2 = this.data;
+            NDArray temp2 = this.labels;
             this.data = this.data.concat(X);
             this.labels = this.labels.concat(Y);
-            temp.detach();
-            temp2.detach();
+            temp.close();
+            temp2.close();
+            X.close();
+            Y.close();
         }
+        Xs.close();
+        Ys.close();
         this.prepared = true;
     }
 
@@ -0,0 +1,182 @@
+import ai.djl.Device;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.AbstractBlock;
+import ai.djl.training.ParameterStore;
+import ai.djl.training.dataset.Batch;
+import ai.djl.training.dataset.RandomAccessDataset;
+import ai.djl.training.loss.SoftmaxCrossEntropyLoss;
+import ai.djl.translate.TranslateException;
+import ai.djl.util.Pair;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Trains the models of {@code TimeMachine} on several replicas in parallel, see {@code
+ * DataParallel}. {@code DataParallel}, {@code GradientCompressor} and {@code LossFusedModel} have
+ * to be loaded before this class.
+ */
+public class TrainParallel {
+
+    /**
+     * Train `numReplicas` replicas of a model in parallel, see `DataParallel`. Each replica gets a
+     * share of the sequences of every batch, and keeps the state of its own sequences.
+     *
+     * @param newNet creates a replica of the model, initialized, given the manager of the replica
+     * @param numReplicas the no. of replicas, each trained by its own thread
+     * @param dataset the dataset
+     * @param vocab the vocabulary
+     * @param lr the learning rate
+     * @param numEpochs the no. of epochs
+     * @param device the device
+     * @param useRandomIter whether the batches are sampled at random
+     * @param manager the manager the managers of the replicas are created from
+     */
+    public static void trainCh8(
+            Function<NDManager, Object> newNet,
+            int numReplicas,
+            RandomAccessDataset dataset,
+            Vocab vocab,
+            int lr,
+            int numEpochs,
+            Device device,
+            boolean useRandomIter,
+            NDManager manager)
+            throws IOException, TranslateException {
+        trainCh8(
+                newNet,
+                numReplicas,
+                dataset,
+                vocab,
+                lr,
+                numEpochs,
+                device,
+                useRandomIter,
+                manager,
+                null);
+    }
+
+    /* Exchanges the gradients of the replicas compressed by `compressor`, see `DataParallel` */
+    public static void trainCh8(
+            Function<NDManager, Object> newNet,
+            int numReplicas,
+            RandomAccessDataset dataset,
+            Vocab vocab,
+            int lr,
+            int numEpochs,
+            Device device,
+            boolean useRandomIter,
+            NDManager manager,
+            GradientCompressor compressor)
+            throws IOException, TranslateException {
+        SoftmaxCrossEntropyLoss loss = new SoftmaxCrossEntropyLoss();
+        Animator animator = new Animator();
+        List<NDManager> managers = new ArrayList<>();
+        try {
+            List<Object> nets = new ArrayList<>();
+            List<Functions.voidTwoFunction<Integer, NDManager>> updaters = new ArrayList<>();
+            for (int i = 0; i < numReplicas; i++) {
+                managers.add(manager.newSubManager());
+                nets.add(newNet.apply(managers.get(i)));
+                updaters.add(TimeMachine.newUpdater(nets.get(i), loss, lr, managers.get(i)));
+            }
+
+            DataParallel.Step step =
+                    (replica, data, labels, subManager) -> {
+                        Object net = replica.getModel();
+                        NDArray X = data.head();
+                        NDArray y = labels.head().transpose().reshape(new Shape(-1));
+                        NDList state = replica.getState();
+                        if (state == null || useRandomIter) {
+                            state = null;
+                            if (net instanceof RNNModelScratch) {
+                                state =
+                                        ((RNNModelScratch) net)
+                                                .beginState((int) X.getShape().get(0), device);
+                                state.attach(subManager);
+                            }
+                        } else {
+                            NDList detached = new NDList();
+                            for (NDArray s : state) {
+                                detached.add(s.stopGradient());
+                            }
+                            state = detached;
+                        }
+                        NDList input = state == null ? new NDList(X) : new NDList(X).addAll(state);
+                        ParameterStore ps = new ParameterStore(replica.getManager(), false);
+                        NDList result;
+                        if (net instanceof LossFusedModel && ((LossFusedModel) net).isLossFused()) {
+                            result = ((LossFusedModel) net).forwardLoss(ps, input, y, loss, true);
+                            replica.setState(result.subNDList(2));
+                            return result.subNDList(0, 2);
+                        }
+                        NDArray yHat;
+                        if (net instanceof RNNModelScratch) {
+                            Pair<NDArray, NDList> pair = ((RNNModelScratch) net).forward(X, state);
+                            yHat = pair.getKey();
+                            replica.setState(pair.getValue());
+                        } else {
+                            result = ((AbstractBlock) net).forward(ps, input, true);
+                            yHat = result.get(0);
+                            replica.setState(result.subNDList(1));
+                        }
+                        return new NDList(loss.evaluate(new NDList(y), new NDList(yHat)).mean());
+                    };
+
+            double ppl = 0.0;
+            double speed = 0.0;
+            long bytesMoved;
+            try (DataParallel parallel =
+                    new DataParallel(nets, TimeMachine::getParams, compressor)) {
+                for (int epoch = 0; epoch < numEpochs; epoch++) {
+                    StopWatch watch = new StopWatch();
+                    watch.start();
+                    Accumulator metric = new Accumulator(2); // Sum of training loss, no. of tokens
+                    for (Batch batch : dataset.getData(manager)) {
+                        NDList data = new NDList(batch.getData().head().toDevice(device, false));
+                        NDList labels =
+                                new NDList(batch.getLabels().head().toDevice(device, false));
+                        float l =
+                                parallel.step(
+                                        data,
+                                        labels,
+                                        step,
+                                        (replica, subManager) -> {
+                                            TimeMachine.gradClipping(
+                                                    replica.getModel(), 1, subManager);
+                                            updaters.get(replica.getIndex()).apply(1, subManager);
+                                        });
+                        metric.add(new float[] {l * labels.head().size(), labels.head().size()});
+                        batch.close();
+                    }
+                    ppl = Math.exp(metric.get(0) / metric.get(1));
+                    speed = metric.get(1) / watch.stop();
+                    if ((epoch + 1) % 10 == 0) {
+                        animator.add(epoch + 1, (float) ppl, "ppl");
+                        animator.show();
+                    }
+                }
+                bytesMoved = parallel.getBytesMoved();
+            }
+            System.out.format(
+                    "perplexity: %.1f, %.1f tokens/sec on %d replicas on %s%n",
+                    ppl, speed, numReplicas, device.toString());
+            System.out.format("%.1f MB of gradients exchanged%n", bytesMoved / 1e6);
+            System.out.println(
+                    TimeMachine.predictCh8(
+                            "time traveller", 50, nets.get(0), vocab, device, manager));
+            System.out.println(
+                    TimeMachine.predictCh8("traveller", 50, nets.get(0), vocab, device, manager));
+        } finally {
+            // The replicas are not needed anymore, `DataParallel` leaves their managers to us
+            for (NDManager replicaManager : managers) {
+                replicaManager.close();
+            }
+        }
+    }
+}
@@ -13,13 +13,12 @@ public class Vocab {
     public HashMap<String, Integer> tokenToIdx;
 
     public Vocab(String[][] tokens, int minFreq, String[] reservedTokens) {
-        // Sort according to frequencies
-        LinkedHashMap<?, Integer> counterObject = countCorpus2D(tokens);
-        LinkedHashMap<String, Integer> counter = new LinkedHashMap<>();
-        for (Map.Entry<?, Integer> e : counterObject.entrySet()) {
-            counter.put((String) e.getKey(), e.getValue());
-        }
+        this(countCorpus2D(tokens), minFreq, reservedTokens);
+    }
 
+    /* Build the vocabulary from token frequencies, ties keep the order of `counter` */
+    public Vocab(LinkedHashMap<String, Integer> counter, int minFreq, String[] reservedTokens) {
+        // Sort according to frequencies
         this.tokenFreqs = new ArrayList<>(counter.entrySet());
         tokenFreqs.sort((o1, o2) -> (o2.getValue()).compareTo(o1.getValue()));
 